@@ -0,0 +1,55 @@
+package com.jtyang.test.recorder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Loading a hierarchy dump through {@link UiAutomatorModelStub}: the rotation read on every capture,
+ * and the full tree built only when something asks for it.
+ *
+ * @author jtyang
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HierarchyBenchmark {
+    @Param({"100", "1000"})
+    public int nodeCount;
+
+    private File dumpFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        dumpFile = File.createTempFile("ui_hierarchy", ".xml");
+        Files.write(dumpFile.toPath(), SyntheticSession.hierarchyXml(nodeCount, 1).getBytes(UTF_8));
+    }
+
+    @TearDown
+    public void tearDown() {
+        dumpFile.delete();
+    }
+
+    @Benchmark
+    public int getRotation() {
+        return new UiAutomatorModelStub(dumpFile).getRotation();
+    }
+
+    @Benchmark
+    public Object getXmlRootNode() {
+        return new UiAutomatorModelStub(dumpFile).getXmlRootNode();
+    }
+}
@@ -0,0 +1,71 @@
+package com.jtyang.test.recorder;
+
+import com.google.gct.testrecorder.event.TestRecorderEvent;
+import com.google.gson.Gson;
+import com.jtyang.test.recorder.MyRecordingDialog.MyElementDescriptorSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converting breakpoint events and serializing them as a robo script, what every event and
+ * {@link MyRecordingDialog#getJsonForActions} go through.
+ * <p>
+ * Class names are resolved from a map, as {@link InternalNameCache} does once warmed up.
+ *
+ * @author jtyang
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RoboScriptBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int eventCount;
+
+    private List<TestRecorderEvent> events;
+    private List<MyTestRecorderEvent> myEvents;
+    private Gson gson;
+
+    @Setup
+    public void setUp() {
+        events = SyntheticSession.events(eventCount);
+        myEvents = SyntheticSession.myEvents(eventCount);
+        Map<String, String> internalNames = new ConcurrentHashMap<>();
+        gson = RoboScriptWriter.createGson(new MyElementDescriptorSerializer(
+                className -> internalNames.computeIfAbsent(className, name -> name.replace('.', '/'))));
+    }
+
+    @Benchmark
+    public void getMyRecorderEvent(Blackhole blackhole) {
+        for (TestRecorderEvent event : events) {
+            blackhole.consume(MyTestRecorderEvent.getMyRecorderEvent(event));
+        }
+    }
+
+    @Benchmark
+    public String getJsonForActions() throws IOException {
+        StringWriter json = new StringWriter();
+        RoboScriptWriter.write(gson, myEvents, json, false);
+        return json.toString();
+    }
+
+    @Benchmark
+    public String getJsonForActionsCompact() throws IOException {
+        StringWriter json = new StringWriter();
+        RoboScriptWriter.write(gson, myEvents, json, true);
+        return json.toString();
+    }
+}
@@ -0,0 +1,73 @@
+package com.jtyang.test.recorder;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import com.jtyang.test.recorder.MyRecordingDialog.MyElementDescriptorSerializer;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Looking up the event in the middle of a saved script, as analyses of records do,
+ * from the pretty-printed {@code robo_script.json} and from its {@link BinaryRoboScriptWriter} form.
+ * Each lookup opens the file afresh.
+ *
+ * @author jtyang
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RoboScriptLookupBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int eventCount;
+
+    private File workDirectory;
+    private File jsonScript;
+    private File binaryScript;
+
+    @Setup
+    public void setUp() throws IOException {
+        workDirectory = Files.createTempDirectory("robo_script_lookup_benchmark").toFile();
+        jsonScript = new File(workDirectory, RecordJournal.ROBO_SCRIPT_FILENAME);
+        binaryScript = new File(workDirectory, BinaryRoboScriptWriter.FILENAME);
+        Gson gson = RoboScriptWriter.createGson(new MyElementDescriptorSerializer(className -> className.replace('.', '/')));
+        RoboScriptWriter.write(gson, SyntheticSession.myEvents(eventCount), Files.newBufferedWriter(jsonScript.toPath(), UTF_8), false);
+        RoboScriptConverter.toBinary(jsonScript, binaryScript);
+    }
+
+    @TearDown
+    public void tearDown() {
+        FileUtils.deleteQuietly(workDirectory);
+    }
+
+    @Benchmark
+    public Object lookupJson() throws IOException {
+        try (Reader reader = Files.newBufferedReader(jsonScript.toPath(), UTF_8)) {
+            JsonArray events = JsonParser.parseReader(reader).getAsJsonArray();
+            return events.get(eventCount / 2);
+        }
+    }
+
+    @Benchmark
+    public Object lookupBinary() throws IOException {
+        try (BinaryRoboScriptReader reader = new BinaryRoboScriptReader(binaryScript)) {
+            return reader.get(eventCount / 2);
+        }
+    }
+}
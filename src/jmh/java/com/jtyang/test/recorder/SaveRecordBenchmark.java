@@ -0,0 +1,86 @@
+package com.jtyang.test.recorder;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Turning the journal of a finished session into a record, the work {@link MyRecordingDialog#saveRecord}
+ * does off the EDT. The dialog itself needs a running IDE, so the journal is sealed through
+ * {@link RecordJournal#recover}, which goes through the same {@link RecordJournal#seal}.
+ * <p>
+ * Sealing consumes the journal, so a fresh one is laid out before each invocation.
+ *
+ * @author jtyang
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SaveRecordBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int eventCount;
+
+    @Param({"0", "10"})
+    public int hierarchyKeyframeInterval;
+
+    @Param({"DIRECTORY", "ZIP"})
+    public RecordJournal.OutputFormat outputFormat;
+
+    private List<MyTestRecorderEvent> events;
+    private byte[] hierarchy;
+    private byte[] screenshot;
+    private AdaptedRecorderSettings settings;
+    private File workDirectory;
+    private File journalDirectory;
+    private File recordDirectory;
+
+    @Setup
+    public void setUp() throws IOException {
+        events = SyntheticSession.myEvents(eventCount);
+        hierarchy = SyntheticSession.hierarchyXml(200, 0).getBytes(UTF_8);
+        // Contents do not matter to sealing, only sizes do
+        screenshot = new byte[150 * 1024];
+        Arrays.fill(screenshot, (byte) 0x5a);
+        settings = new AdaptedRecorderSettings();
+        settings.HIERARCHY_KEYFRAME_INTERVAL = hierarchyKeyframeInterval;
+        settings.RECORD_OUTPUT_FORMAT = outputFormat;
+        workDirectory = Files.createTempDirectory("save_record_benchmark").toFile();
+    }
+
+    @Setup(Level.Invocation)
+    public void layOutJournal() throws IOException {
+        journalDirectory = new File(workDirectory, "journal");
+        recordDirectory = new File(workDirectory, "record");
+        FileUtils.deleteDirectory(journalDirectory);
+        FileUtils.deleteDirectory(recordDirectory);
+        SyntheticSession.writeJournal(journalDirectory, events, hierarchy, screenshot);
+    }
+
+    @TearDown
+    public void tearDown() {
+        FileUtils.deleteQuietly(workDirectory);
+    }
+
+    @Benchmark
+    public File saveRecord() throws IOException {
+        RecordJournal.recover(journalDirectory, recordDirectory, settings);
+        return recordDirectory;
+    }
+}
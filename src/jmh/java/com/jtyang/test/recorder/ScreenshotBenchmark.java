@@ -0,0 +1,66 @@
+package com.jtyang.test.recorder;
+
+import com.intellij.openapi.util.Disposer;
+import com.jtyang.test.recorder.ScreenshotEncoder.ImageCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rotating and encoding a 1080x2340 frame the way {@link ScreenshotEncoder} does for each capture,
+ * written to the same file over and over.
+ *
+ * @author jtyang
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ScreenshotBenchmark {
+    @Param({"PNG", "JPEG"})
+    public ImageCodec codec;
+
+    @Param({"1", "6"})
+    public int compressionLevel;
+
+    private RawFrame frame;
+    private ScreenshotEncoder encoder;
+    private File target;
+
+    @Setup
+    public void setUp() throws IOException {
+        frame = SyntheticSession.frame(1080, 2340);
+        encoder = new ScreenshotEncoder(codec, compressionLevel, 90, 0, 1);
+        target = File.createTempFile("screenshot", "." + codec.getExtension());
+    }
+
+    @TearDown
+    public void tearDown() {
+        Disposer.dispose(encoder);
+        target.delete();
+    }
+
+    @Benchmark
+    public RawFrame rotate() {
+        return frame.rotate(1);
+    }
+
+    @Benchmark
+    public File encode() throws IOException {
+        return encoder.encode(frame, 0, target);
+    }
+
+    @Benchmark
+    public File rotateAndEncode() throws IOException {
+        return encoder.encode(frame, 1, target);
+    }
+}
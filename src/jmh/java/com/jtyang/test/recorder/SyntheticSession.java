@@ -0,0 +1,132 @@
+package com.jtyang.test.recorder;
+
+import com.google.gct.testrecorder.event.ElementDescriptor;
+import com.google.gct.testrecorder.event.TestRecorderEvent;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.intellij.openapi.project.Project;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Recording sessions made up for benchmarks, shaped like what breakpoints and devices produce
+ * but needing neither of them.
+ *
+ * @author jtyang
+ */
+public class SyntheticSession {
+    private static final String[] EVENT_TYPES = {
+            TestRecorderEvent.VIEW_CLICK, TestRecorderEvent.TEXT_CHANGE, TestRecorderEvent.VIEW_SWIPE,
+            TestRecorderEvent.PRESS_BACK, TestRecorderEvent.LIST_ITEM_CLICK
+    };
+    private static final String[] CLASS_NAMES = {
+            "android.widget.Button", "android.widget.EditText", "androidx.recyclerview.widget.RecyclerView",
+            "android.widget.TextView", "com.example.app.CustomView"
+    };
+
+    private SyntheticSession() {
+    }
+
+    /**
+     * Events as Test Recorder reports them, each with a few element descriptors.
+     */
+    public static List<TestRecorderEvent> events(int count) {
+        List<TestRecorderEvent> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String eventType = EVENT_TYPES[i % EVENT_TYPES.length];
+            TestRecorderEvent event = new TestRecorderEvent(eventType, 1_600_000_000_000L + i * 750L);
+            if (TestRecorderEvent.TEXT_CHANGE.equals(eventType)) {
+                event.setReplacementText("input " + i);
+            }
+            for (int j = 0; j < 3; j++) {
+                event.addElementDescriptor(new ElementDescriptor(CLASS_NAMES[(i + j) % CLASS_NAMES.length], -1, j, i % 7,
+                        "com.example.app:id/view_" + (i % 50), "description " + j, "text " + i));
+            }
+            events.add(event);
+        }
+        return events;
+    }
+
+    public static List<MyTestRecorderEvent> myEvents(int count) {
+        List<MyTestRecorderEvent> events = new ArrayList<>(count);
+        for (TestRecorderEvent event : events(count)) {
+            events.add(MyTestRecorderEvent.getMyRecorderEvent(event));
+        }
+        return events;
+    }
+
+    /**
+     * A uiautomator dump of a screen with {@code nodeCount} views, in nested layouts a few levels deep.
+     */
+    public static String hierarchyXml(int nodeCount, int rotation) {
+        StringBuilder xml = new StringBuilder(nodeCount * 400);
+        xml.append("<?xml version='1.0' encoding='UTF-8' standalone='yes' ?><hierarchy rotation=\"").append(rotation).append("\">");
+        int open = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            xml.append("<node index=\"").append(i % 10).append("\" text=\"text ").append(i)
+                    .append("\" resource-id=\"com.example.app:id/view_").append(i)
+                    .append("\" class=\"").append(CLASS_NAMES[i % CLASS_NAMES.length])
+                    .append("\" package=\"com.example.app\" content-desc=\"\" checkable=\"false\" checked=\"false\"")
+                    .append(" clickable=\"true\" enabled=\"true\" focusable=\"true\" focused=\"false\" scrollable=\"false\"")
+                    .append(" long-clickable=\"false\" password=\"false\" selected=\"false\" bounds=\"[0,")
+                    .append(i).append("][1080,").append(i + 96).append("]\"");
+            // Every fifth node is a layout holding the following ones
+            if (i % 5 == 0 && open < 8) {
+                xml.append('>');
+                open++;
+            } else {
+                xml.append("/>");
+            }
+        }
+        for (; open > 0; open--) {
+            xml.append("</node>");
+        }
+        return xml.append("</hierarchy>").toString();
+    }
+
+    /**
+     * A screen-sized frame with gradients and flat areas, about as compressible as a real screenshot.
+     */
+    public static RawFrame frame(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                boolean flat = (y / 96) % 2 == 0;
+                pixels[y * width + x] = flat ? 0xfffafafa : 0xff000000 | (x * 255 / width) << 16 | (y * 255 / height) << 8 | 0x80;
+            }
+        }
+        return new RawFrame(pixels, width, height);
+    }
+
+    /**
+     * Lay out a journal as {@link RecordJournal} leaves it once every capture is done,
+     * with a hierarchy and a screenshot for each event.
+     */
+    public static void writeJournal(File journalDirectory, List<MyTestRecorderEvent> events, byte[] hierarchy, byte[] screenshot)
+            throws IOException {
+        File artifactsDirectory = new File(journalDirectory, RecordJournal.ARTIFACTS_DIRECTORY_NAME);
+        Files.createDirectories(artifactsDirectory.toPath());
+        Gson gson = RoboScriptWriter.createGson((Project) null);
+        try (Writer writer = Files.newBufferedWriter(new File(journalDirectory, RecordJournal.JOURNAL_FILENAME).toPath(), UTF_8)) {
+            for (int i = 0; i < events.size(); i++) {
+                MyTestRecorderEvent event = events.get(i);
+                event.setHierarchy("ui_hierarchy" + i + ".xml");
+                event.setScreenshot("screenshot" + i + ".png");
+                Files.write(new File(artifactsDirectory, event.getHierarchy()).toPath(), hierarchy);
+                Files.write(new File(artifactsDirectory, event.getScreenshot()).toPath(), screenshot);
+                JsonObject line = new JsonObject();
+                line.addProperty("seq", i);
+                line.add("event", gson.toJsonTree(event));
+                writer.write(gson.toJson(line));
+                writer.write('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.jtyang.test.recorder;
+
+import com.google.gct.testrecorder.event.TestRecorderEvent;
+import com.google.gct.testrecorder.settings.TestRecorderSettings;
+import com.intellij.openapi.components.PersistentStateComponent;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.components.State;
+import com.intellij.openapi.components.Storage;
+import com.intellij.util.xmlb.XmlSerializerUtil;
+import com.jtyang.test.recorder.CapturePipeline.OverflowPolicy;
+import com.jtyang.test.recorder.DeviceCapturer.CaptureMode;
+import com.jtyang.test.recorder.RecordJournal.OutputFormat;
+import com.jtyang.test.recorder.ScreenshotEncoder.ImageCodec;
+import com.jtyang.test.recorder.ScreenshotStore.DedupMode;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Settings of adapted test recorder, persisted the same way as {@link TestRecorderSettings}.
+ *
+ * @author jtyang
+ */
+@State(name = "AdaptedTestRecorderSettings", storages = @Storage("adaptedTestRecorderSettings.xml"))
+public class AdaptedRecorderSettings implements PersistentStateComponent<AdaptedRecorderSettings> {
+    // Max number of capture jobs waiting for the device, the excess ones are handled by CAPTURE_OVERFLOW_POLICY
+    public int CAPTURE_QUEUE_CAPACITY = 4;
+    public OverflowPolicy CAPTURE_OVERFLOW_POLICY = OverflowPolicy.COALESCE;
+    // Take screenshot and hierarchy dump at the same time instead of one after the other
+    public CaptureMode CAPTURE_MODE = CaptureMode.SEQUENTIAL;
+    // Reuse the last capture while the md5 of the hierarchy dump on the device stays the same, in either CAPTURE_MODE
+    public boolean SKIP_UNCHANGED_CAPTURES = true;
+    // PARALLEL only, screenshots taken at once by all devices recording together
+    public int CAPTURE_THREADS = 4;
+    // Capture policy by event type, see CapturePolicy for the values. Event types not listed are captured in full
+    public Map<String, String> CAPTURE_POLICIES = new HashMap<>();
+    // Quiet period in ms after which a burst of events of the type is captured once, types not listed are not coalesced
+    public Map<String, Integer> COALESCE_QUIET_MILLIS = new HashMap<>(Map.of(
+            TestRecorderEvent.TEXT_CHANGE, 1500,
+            TestRecorderEvent.WINDOW_CONTENT_CHANGED, 500,
+            TestRecorderEvent.VIEW_SWIPE, 300,
+            TestRecorderEvent.DELAYED_MESSAGE_POST, 300));
+    public ImageCodec SCREENSHOT_CODEC = ImageCodec.PNG;
+    // 0 (fastest) to 9 (smallest), applies to PNG and WebP
+    public int SCREENSHOT_COMPRESSION_LEVEL = 1;
+    public int SCREENSHOT_JPEG_QUALITY = 90;
+    // Longest edge of saved screenshots in pixels, 0 to keep the device resolution
+    public int SCREENSHOT_MAX_DIMENSION = 0;
+    public int ENCODE_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    public DedupMode SCREENSHOT_DEDUP_MODE = DedupMode.EXACT;
+    // Max differing bits of 64-bit perceptual hashes for DedupMode.NEAR_DUPLICATE
+    public int NEAR_DUPLICATE_THRESHOLD = 2;
+    // Save hierarchies as one delta-encoded file with a keyframe every N dumps, 0 to save plain XML files
+    public int HIERARCHY_KEYFRAME_INTERVAL = 0;
+    // Threads copying artifacts when the record directory is on another filesystem than the journal
+    public int FINALIZE_THREADS = 4;
+    public boolean WRITE_CHECKSUM_MANIFEST = true;
+    // Disk space of hierarchies and screenshots of a session, the oldest screenshots are evicted beyond it. 0 for no limit
+    public int ARTIFACT_DISK_BUDGET_MB = 2048;
+    // ZIP saves the record as one archive file, with an index of the artifacts of each event
+    public OutputFormat RECORD_OUTPUT_FORMAT = OutputFormat.DIRECTORY;
+    // Write robo_script.json without indentation
+    public boolean ROBO_SCRIPT_COMPACT = false;
+    // Also write robo_script.bin, the script in a binary form read by BinaryRoboScriptReader
+    public boolean WRITE_BINARY_ROBO_SCRIPT = false;
+    // Disable a Handler breakpoint (DELAYED_MESSAGE_POST, LAZY_CLASSES_LOADER) once it is hit more often than this in a second, 0 to never disable
+    public int BREAKPOINT_MAX_HITS_PER_SECOND = 100;
+
+    public static AdaptedRecorderSettings getInstance() {
+        return ServiceManager.getService(AdaptedRecorderSettings.class);
+    }
+
+    @Override
+    public AdaptedRecorderSettings getState() {
+        return this;
+    }
+
+    @Override
+    public void loadState(AdaptedRecorderSettings state) {
+        XmlSerializerUtil.copyBean(state, this);
+    }
+}
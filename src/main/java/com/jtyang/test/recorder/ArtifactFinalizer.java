@@ -0,0 +1,168 @@
+package com.jtyang.test.recorder;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.concurrency.AppExecutorUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Moves staged artifacts into the record directory without copying bytes where possible.
+ * <p>
+ * On the same filesystem, artifacts are atomically moved, or hard linked if moving is not supported.
+ * Across filesystems, they are copied in parallel with {@link FileChannel#transferTo}.
+ * Optionally, a {@code sha256sum}-compatible manifest of the finalized artifacts is written next to them.
+ *
+ * @author jtyang
+ */
+public class ArtifactFinalizer {
+    private static final Logger LOGGER = Logger.getInstance(ArtifactFinalizer.class);
+    public static final String MANIFEST_FILENAME = "checksums.sha256";
+
+    private final ExecutorService executor;
+    private final boolean writeManifest;
+
+    public ArtifactFinalizer(int threads, boolean writeManifest) {
+        this.executor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Adapted Test Recorder Finalize", Math.max(1, threads));
+        this.writeManifest = writeManifest;
+    }
+
+    public static ArtifactFinalizer fromSettings(AdaptedRecorderSettings settings) {
+        return new ArtifactFinalizer(settings.FINALIZE_THREADS, settings.WRITE_CHECKSUM_MANIFEST);
+    }
+
+    /**
+     * @param names filenames of artifacts in {@code sourceDirectory}, each is finalized once
+     */
+    public void finalizeArtifacts(File sourceDirectory, Collection<String> names, File targetDirectory) throws IOException {
+        Path target = targetDirectory.toPath();
+        Files.createDirectories(target);
+        boolean sameFileStore = Files.getFileStore(sourceDirectory.toPath()).equals(Files.getFileStore(target));
+        List<CompletableFuture<Void>> copies = new ArrayList<>();
+        List<String> finalized = new ArrayList<>(names.size());
+        for (String name : names) {
+            Path source = sourceDirectory.toPath().resolve(name);
+            if (!Files.isRegularFile(source)) {
+                LOGGER.warn("Artifact " + name + " is missing from " + sourceDirectory);
+                continue;
+            }
+            finalized.add(name);
+            if (sameFileStore && moveOrLink(source, target.resolve(name))) {
+                continue;
+            }
+            copies.add(CompletableFuture.runAsync(() -> {
+                try {
+                    transfer(source, target.resolve(name));
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor));
+        }
+        join(copies);
+        if (writeManifest) {
+            writeManifest(targetDirectory, finalized);
+        }
+    }
+
+    private static boolean moveOrLink(Path source, Path target) {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (AtomicMoveNotSupportedException e) {
+            // fall through
+        } catch (IOException e) {
+            LOGGER.debug("Could not move " + source + ": " + e.getMessage());
+            return false;
+        }
+        try {
+            Files.deleteIfExists(target);
+            Files.createLink(target, source);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.debug("Could not link " + source + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static void transfer(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+    }
+
+    private void writeManifest(File targetDirectory, List<String> names) throws IOException {
+        Map<String, CompletableFuture<String>> digests = new TreeMap<>();
+        for (String name : names) {
+            digests.put(name, CompletableFuture.supplyAsync(() -> {
+                try {
+                    return sha256(new File(targetDirectory, name).toPath());
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor));
+        }
+        join(new ArrayList<>(digests.values()));
+        try (Writer writer = Files.newBufferedWriter(new File(targetDirectory, MANIFEST_FILENAME).toPath(), UTF_8)) {
+            for (Map.Entry<String, CompletableFuture<String>> digest : digests.entrySet()) {
+                writer.write(digest.getValue().join() + "  " + digest.getKey() + "\n");
+            }
+        }
+    }
+
+    private static String sha256(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            //noinspection StatementWithEmptyBody
+            while (in.read(buffer) >= 0) {
+            }
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void join(List<? extends CompletableFuture<?>> futures) throws IOException {
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
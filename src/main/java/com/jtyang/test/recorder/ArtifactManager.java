@@ -0,0 +1,247 @@
+package com.jtyang.test.recorder;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hierarchy and screenshot files of one recording session, counted by the events referencing them.
+ * <p>
+ * An artifact is deleted as soon as no event references it any more, e.g. once its events are removed
+ * in the dialog, or once a newer capture supersedes it without any event having referenced it.
+ * The latest hierarchy and screenshot are kept regardless, as the next capture may reuse them.
+ * What is unreferenced when the session ends goes with it, the rest stays with the journal until
+ * it is sealed or discarded.
+ * <p>
+ * Once the artifacts exceed the disk budget, the oldest unreferenced ones are deleted first. Only if that is not
+ * enough are the oldest referenced screenshots evicted, and {@link DeletionListener} is told so that
+ * the events forget them. Hierarchies are kept, they are small and needed to replay.
+ *
+ * @author jtyang
+ */
+public class ArtifactManager implements Disposable {
+    private static final Logger LOGGER = Logger.getInstance(ArtifactManager.class);
+
+    public enum Kind {
+        HIERARCHY,
+        SCREENSHOT
+    }
+
+    public interface DeletionListener {
+        /**
+         * Called for every artifact deleted while recording, within the lock of the manager.
+         *
+         * @param references number of events still referencing it, only above 0 if evicted
+         */
+        void deleted(String filename, Kind kind, int references);
+    }
+
+    private final long diskBudgetBytes;
+    private final DeletionListener listener;
+    // In registration order, which is the eviction order
+    private final Map<String, Artifact> artifacts = new LinkedHashMap<>();
+    private long diskUsage;
+    private int evictedCount;
+    private int evictedReferencedCount;
+    private String latestHierarchy;
+    private String latestScreenshot;
+
+    /**
+     * @param diskBudgetBytes 0 for no budget
+     * @param listener        told about deletions while recording, null if not needed
+     */
+    public ArtifactManager(long diskBudgetBytes, DeletionListener listener) {
+        this.diskBudgetBytes = diskBudgetBytes;
+        this.listener = listener;
+    }
+
+    public static ArtifactManager fromSettings(AdaptedRecorderSettings settings, DeletionListener listener) {
+        return new ArtifactManager(settings.ARTIFACT_DISK_BUDGET_MB * 1024L * 1024L, listener);
+    }
+
+    /**
+     * Take charge of a captured file, referenced by {@code references} events.
+     * Registering the same file again, e.g. a screenshot shared by duplicate frames, only adds the references.
+     *
+     * @return the name events refer to the file by, null if it is gone, e.g. a duplicate of an evicted screenshot
+     */
+    public synchronized String register(File file, Kind kind, int references) {
+        String filename = file.getName();
+        Artifact artifact = artifacts.get(filename);
+        if (artifact == null) {
+            if (!file.isFile()) {
+                LOGGER.debug(file + " is gone, not registering it");
+                return null;
+            }
+            artifact = new Artifact(file, kind);
+            artifacts.put(filename, artifact);
+            diskUsage += artifact.size;
+            String superseded = kind == Kind.SCREENSHOT ? latestScreenshot : latestHierarchy;
+            if (kind == Kind.SCREENSHOT) {
+                latestScreenshot = filename;
+            } else {
+                latestHierarchy = filename;
+            }
+            deleteIfUnreferenced(superseded);
+        }
+        artifact.references += references;
+        evictOverBudget();
+        return filename;
+    }
+
+    /**
+     * Count {@code references} more events referencing {@code filename}.
+     */
+    public synchronized void retain(String filename, int references) {
+        Artifact artifact = filename == null ? null : artifacts.get(filename);
+        if (artifact != null) {
+            artifact.references += references;
+        }
+    }
+
+    /**
+     * Count {@code references} events less referencing {@code filename}, deleting it if none is left.
+     */
+    public synchronized void release(String filename, int references) {
+        Artifact artifact = filename == null ? null : artifacts.get(filename);
+        if (artifact != null) {
+            artifact.references -= references;
+            deleteIfUnreferenced(filename);
+        }
+    }
+
+    /**
+     * Recount references from the events that make it into the record, e.g. not removed in the dialog,
+     * and delete the artifacts none of them references.
+     */
+    public synchronized void retainOnly(Collection<? extends MyTestRecorderEvent> events) {
+        artifacts.values().forEach(artifact -> artifact.references = 0);
+        for (MyTestRecorderEvent event : events) {
+            retain(event.getHierarchy(), 1);
+            retain(event.getScreenshot(), 1);
+        }
+        deleteUnreferenced();
+    }
+
+    /**
+     * Delete a file of a capture that failed before any event could reference it.
+     */
+    public void discard(File file) {
+        if (file != null && file.exists() && !file.delete()) {
+            LOGGER.debug("Could not delete " + file);
+        }
+    }
+
+    public synchronized long getDiskUsage() {
+        return diskUsage;
+    }
+
+    /**
+     * @return number of artifacts deleted to stay within the disk budget
+     */
+    public synchronized int getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * @return number of screenshots deleted to stay within the disk budget although events referenced them
+     */
+    public synchronized int getEvictedReferencedCount() {
+        return evictedReferencedCount;
+    }
+
+    private void deleteIfUnreferenced(String filename) {
+        Artifact artifact = filename == null ? null : artifacts.get(filename);
+        if (artifact != null && artifact.references <= 0 && !filename.equals(latestHierarchy) && !filename.equals(latestScreenshot)) {
+            delete(filename, artifact);
+        }
+    }
+
+    private void evictOverBudget() {
+        if (diskBudgetBytes <= 0 || diskUsage <= diskBudgetBytes) {
+            return;
+        }
+        List<String> unreferenced = new ArrayList<>();
+        List<String> referenced = new ArrayList<>();
+        long excess = diskUsage - diskBudgetBytes;
+        for (Map.Entry<String, Artifact> entry : artifacts.entrySet()) {
+            String filename = entry.getKey();
+            if (filename.equals(latestHierarchy) || filename.equals(latestScreenshot)) {
+                continue;
+            }
+            if (entry.getValue().references <= 0) {
+                unreferenced.add(filename);
+            } else if (entry.getValue().kind == Kind.SCREENSHOT) {
+                referenced.add(filename);
+            }
+        }
+        for (String filename : unreferenced) {
+            if (excess <= 0) {
+                return;
+            }
+            excess -= artifacts.get(filename).size;
+            delete(filename, artifacts.get(filename));
+            evictedCount++;
+        }
+        if (excess > 0 && !referenced.isEmpty() && evictedReferencedCount == 0) {
+            LOGGER.warn("Recording artifacts exceed " + diskBudgetBytes / (1024 * 1024) + " MB, evicting the oldest screenshots");
+        }
+        for (String filename : referenced) {
+            if (excess <= 0) {
+                return;
+            }
+            excess -= artifacts.get(filename).size;
+            delete(filename, artifacts.get(filename));
+            evictedCount++;
+            evictedReferencedCount++;
+        }
+    }
+
+    private void delete(String filename, Artifact artifact) {
+        artifacts.remove(filename);
+        diskUsage -= artifact.size;
+        discard(artifact.file);
+        if (listener != null) {
+            listener.deleted(filename, artifact.kind, Math.max(0, artifact.references));
+        }
+    }
+
+    private void deleteUnreferenced() {
+        Iterator<Artifact> iterator = artifacts.values().iterator();
+        while (iterator.hasNext()) {
+            Artifact artifact = iterator.next();
+            if (artifact.references <= 0) {
+                iterator.remove();
+                diskUsage -= artifact.size;
+                discard(artifact.file);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void dispose() {
+        deleteUnreferenced();
+        artifacts.clear();
+        diskUsage = 0;
+    }
+
+    private static class Artifact {
+        private final File file;
+        private final Kind kind;
+        private final long size;
+        private int references;
+
+        private Artifact(File file, Kind kind) {
+            this.file = file;
+            this.kind = kind;
+            this.size = file.length();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.jtyang.test.recorder;
+
+import com.google.gct.testrecorder.event.ElementDescriptor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads events of a script written by {@link BinaryRoboScriptWriter} by index, without parsing the rest of it.
+ * <p>
+ * The file is memory-mapped. Opening only checks the header, events are decoded when asked for,
+ * and strings of the pool once when first referenced. Safe for use by several threads.
+ *
+ * @author jtyang
+ */
+public class BinaryRoboScriptReader implements Closeable {
+    private static final int TIMESTAMP = Integer.BYTES;
+    private static final int HIERARCHY = TIMESTAMP + Long.BYTES;
+    private static final int SCREENSHOT = HIERARCHY + Integer.BYTES;
+    private static final int ACTION_CODE = SCREENSHOT + Integer.BYTES;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int eventCount;
+    private final int stringTableOffset;
+    private final int eventTableOffset;
+    private final AtomicReferenceArray<String> strings;
+
+    public BinaryRoboScriptReader(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            if (channel.size() < BinaryRoboScriptWriter.HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is not a binary robo script");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != BinaryRoboScriptWriter.MAGIC) {
+                throw new IOException(file + " is not a binary robo script");
+            }
+            if (buffer.getInt(4) != BinaryRoboScriptWriter.VERSION) {
+                throw new IOException(file + " is of unsupported version " + buffer.getInt(4));
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        eventCount = buffer.getInt(8);
+        strings = new AtomicReferenceArray<>(buffer.getInt(12));
+        stringTableOffset = buffer.getInt(16);
+        eventTableOffset = buffer.getInt(20);
+    }
+
+    public int size() {
+        return eventCount;
+    }
+
+    public String getEventType(int index) {
+        return getString(buffer.getInt(offsetOf(index)));
+    }
+
+    public long getTimestamp(int index) {
+        return buffer.getLong(offsetOf(index) + TIMESTAMP);
+    }
+
+    public String getHierarchy(int index) {
+        return getString(buffer.getInt(offsetOf(index) + HIERARCHY));
+    }
+
+    public String getScreenshot(int index) {
+        return getString(buffer.getInt(offsetOf(index) + SCREENSHOT));
+    }
+
+    /**
+     * Decode the whole event at {@code index}. Class names of element descriptors are as serialized,
+     * e.g. resolved by {@link MyRecordingDialog.MyElementDescriptorSerializer}.
+     */
+    public MyTestRecorderEvent get(int index) {
+        int offset = offsetOf(index);
+        MyTestRecorderEvent event = new MyTestRecorderEvent(getEventType(index), getTimestamp(index));
+        event.setHierarchy(getHierarchy(index));
+        event.setScreenshot(getScreenshot(index));
+        // Relative reads from here, on a view of its own
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + ACTION_CODE);
+        event.setActionCode(record.getInt());
+        event.setCanScrollTo(record.get() != 0);
+        event.setDelayTime(record.getLong());
+        event.setReplacementText(getString(record.getInt()));
+        event.setSwipeDirection(getString(record.getInt()));
+        int permissionCount = record.getInt();
+        if (permissionCount >= 0) {
+            String[] permissions = new String[permissionCount];
+            for (int i = 0; i < permissionCount; i++) {
+                permissions[i] = getString(record.getInt());
+            }
+            event.setRequestedPermissions(permissions);
+        }
+        event.setCaptureSkewMillis(getMillis(record.getLong()));
+        event.setCaptureStalenessMillis(getMillis(record.getLong()));
+        int descriptorCount = record.getInt();
+        for (int i = 0; i < descriptorCount; i++) {
+            String className = getString(record.getInt());
+            int recyclerViewChildPosition = record.getInt();
+            int adapterViewChildPosition = record.getInt();
+            int groupViewChildPosition = record.getInt();
+            event.addElementDescriptor(new ElementDescriptor(className, recyclerViewChildPosition, adapterViewChildPosition,
+                    groupViewChildPosition, getString(record.getInt()), getString(record.getInt()), getString(record.getInt())));
+        }
+        return event;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The mapping itself is released once unreachable
+        channel.close();
+    }
+
+    private int offsetOf(int index) {
+        if (index < 0 || index >= eventCount) {
+            throw new IndexOutOfBoundsException("No event " + index + ", there are " + eventCount);
+        }
+        return buffer.getInt(eventTableOffset + index * Integer.BYTES);
+    }
+
+    private String getString(int id) {
+        if (id < 0) {
+            return null;
+        }
+        String string = strings.get(id);
+        if (string == null) {
+            int start = buffer.getInt(stringTableOffset + id * Integer.BYTES);
+            int end = buffer.getInt(stringTableOffset + (id + 1) * Integer.BYTES);
+            byte[] bytes = new byte[end - start];
+            ByteBuffer view = buffer.duplicate();
+            view.position(start);
+            view.get(bytes);
+            string = new String(bytes, UTF_8);
+            // Decoding twice in a race is harmless
+            strings.set(id, string);
+        }
+        return string;
+    }
+
+    private static Long getMillis(long millis) {
+        return millis == BinaryRoboScriptWriter.NO_MILLIS ? null : millis;
+    }
+}
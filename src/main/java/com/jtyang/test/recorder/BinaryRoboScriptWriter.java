@@ -0,0 +1,183 @@
+package com.jtyang.test.recorder;
+
+import com.google.gct.testrecorder.event.ElementDescriptor;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.jtyang.test.recorder.MyRecordingDialog.MyElementDescriptorSerializer;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes a robo script in a binary form that {@link BinaryRoboScriptReader} reads events of by index,
+ * one event at a time from the serialized events of the JSON script.
+ * <p>
+ * Layout, big-endian, offsets from the start of the file:
+ * <pre>
+ * header       magic "ARSB", version, event count, string count, string table offset, event table offset (6 ints)
+ * events       one record per event, see {@link #append(JsonObject)}
+ * strings      UTF-8 bytes of each pooled string
+ * string table offset of each string, then the end offset of the last one
+ * event table  offset of each event record
+ * </pre>
+ * Strings are referred to by their index in the pool, -1 for null. Offsets are ints, so a script is limited to 2 GB,
+ * which is also the most a single mapping can hold.
+ *
+ * @author jtyang
+ */
+public class BinaryRoboScriptWriter implements Closeable {
+    public static final String FILENAME = "robo_script.bin";
+    static final int MAGIC = 0x41525342;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 6 * Integer.BYTES;
+    static final long NO_MILLIS = Long.MIN_VALUE;
+
+    // Turns serialized events back into events, class names of element descriptors stay as serialized
+    private final Gson gson = RoboScriptWriter.createGson(new MyElementDescriptorSerializer(UnaryOperator.identity()));
+    private final RandomAccessFile file;
+    private final DataOutputStream out;
+    private final Map<String, Integer> stringIds = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+    private final List<Integer> eventOffsets = new ArrayList<>();
+
+    public BinaryRoboScriptWriter(File target) throws IOException {
+        file = new RandomAccessFile(target, "rw");
+        file.setLength(0);
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(file.getChannel()), 1 << 16));
+        // Filled in by close()
+        out.write(new byte[HEADER_SIZE]);
+    }
+
+    /**
+     * Append a serialized event, e.g. of {@link MyTestRecorderEvent} through {@link RoboScriptWriter#createGson}.
+     * Read back through {@link MyTestRecorderEvent} itself, so its fields are found by the names they are serialized by.
+     */
+    public void append(JsonObject event) throws IOException {
+        append(gson.fromJson(event, MyTestRecorderEvent.class));
+    }
+
+    /**
+     * Append an event, class names of element descriptors are written as they are.
+     * <p>
+     * The record starts with the fields analyses look up most, at fixed positions:
+     * event type, timestamp, hierarchy and screenshot. Then action code, can scroll to (a byte), delay time,
+     * replacement text, swipe direction, requested permissions (a count, -1 for null, and as many strings),
+     * capture skew and staleness ({@link Long#MIN_VALUE} for null), and the element descriptors
+     * (a count, then class name, recycler view, adapter view and group view child positions,
+     * resource id, content description and text of each).
+     */
+    public void append(MyTestRecorderEvent event) throws IOException {
+        eventOffsets.add(checkedOffset());
+        writeString(event.getEventType());
+        out.writeLong(event.getTimestamp());
+        writeString(event.getHierarchy());
+        writeString(event.getScreenshot());
+        out.writeInt(event.getActionCode());
+        out.writeBoolean(event.canScrollTo());
+        out.writeLong(event.getDelayTime());
+        writeString(event.getReplacementText());
+        writeString(event.getSwipeDirection());
+        String[] permissions = event.getRequestedPermissions();
+        if (permissions == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(permissions.length);
+            for (String permission : permissions) {
+                writeString(permission);
+            }
+        }
+        out.writeLong(getMillis(event.getCaptureSkewMillis()));
+        out.writeLong(getMillis(event.getCaptureStalenessMillis()));
+        out.writeInt(event.getElementDescriptorsCount());
+        for (int i = 0; i < event.getElementDescriptorsCount(); i++) {
+            ElementDescriptor descriptor = event.getElementDescriptor(i);
+            writeString(descriptor.getClassName());
+            out.writeInt(descriptor.getRecyclerViewChildPosition());
+            out.writeInt(descriptor.getAdapterViewChildPosition());
+            out.writeInt(descriptor.getGroupViewChildPosition());
+            writeString(descriptor.getResourceId());
+            writeString(descriptor.getContentDescription());
+            writeString(descriptor.getText());
+        }
+    }
+
+    public int getEventCount() {
+        return eventOffsets.size();
+    }
+
+    /**
+     * Write the string pool, the tables and the header.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            int[] stringOffsets = new int[strings.size() + 1];
+            for (int i = 0; i < strings.size(); i++) {
+                stringOffsets[i] = checkedOffset();
+                out.write(strings.get(i).getBytes(UTF_8));
+            }
+            stringOffsets[strings.size()] = checkedOffset();
+            int stringTableOffset = checkedOffset();
+            for (int offset : stringOffsets) {
+                out.writeInt(offset);
+            }
+            int eventTableOffset = checkedOffset();
+            for (int offset : eventOffsets) {
+                out.writeInt(offset);
+            }
+            checkedOffset();
+            out.flush();
+            FileChannel channel = file.getChannel();
+            channel.position(0);
+            DataOutputStream header = new DataOutputStream(Channels.newOutputStream(channel));
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeInt(eventOffsets.size());
+            header.writeInt(strings.size());
+            header.writeInt(stringTableOffset);
+            header.writeInt(eventTableOffset);
+            header.flush();
+        } finally {
+            file.close();
+        }
+    }
+
+    private void writeString(String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        Integer id = stringIds.get(string);
+        if (id == null) {
+            id = strings.size();
+            strings.add(string);
+            stringIds.put(string, id);
+        }
+        out.writeInt(id);
+    }
+
+    private int checkedOffset() throws IOException {
+        // DataOutputStream counts up to Integer.MAX_VALUE and stays there
+        if (out.size() == Integer.MAX_VALUE) {
+            throw new IOException("Binary robo script exceeds 2 GB");
+        }
+        return out.size();
+    }
+
+    private static long getMillis(Long millis) {
+        return millis == null ? NO_MILLIS : millis;
+    }
+}
@@ -0,0 +1,119 @@
+package com.jtyang.test.recorder;
+
+import com.google.gct.testrecorder.debugger.BreakpointCommand;
+import com.google.gct.testrecorder.debugger.BreakpointDescriptor;
+import com.google.gct.testrecorder.event.TestRecorderEvent;
+import com.google.gct.testrecorder.event.TestRecorderEventListener;
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Event listener of a {@link BreakpointCommand} that counts hits and measures how long the actual listener
+ * takes for each hit, which the suspended app thread waits for on top of the debugger round trip.
+ * <p>
+ * Once hits in a second exceed {@code maxHitsPerSecond}, the breakpoint is reported hot, once.
+ *
+ * @author jtyang
+ */
+public class BreakpointStats implements TestRecorderEventListener {
+    private final BreakpointDescriptor descriptor;
+    private final int maxHitsPerSecond;
+    private final Runnable onHot;
+    private final LongAdder hits = new LongAdder();
+    private final LatencyHistogram listenerTimes = new LatencyHistogram();
+    private volatile TestRecorderEventListener delegate;
+    private volatile boolean hot;
+    // Guarded by this
+    private long windowStart;
+    private int windowHits;
+    private int peakHitsPerSecond;
+
+    /**
+     * @param maxHitsPerSecond 0 to never report the breakpoint hot
+     * @param onHot            called on the breakpoint thread, must not block
+     */
+    public BreakpointStats(BreakpointDescriptor descriptor, int maxHitsPerSecond, Runnable onHot) {
+        this.descriptor = descriptor;
+        this.maxHitsPerSecond = maxHitsPerSecond;
+        this.onHot = onHot;
+    }
+
+    public void setDelegate(TestRecorderEventListener delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void onEvent(TestRecorderEvent event) {
+        long start = System.nanoTime();
+        try {
+            TestRecorderEventListener listener = delegate;
+            if (listener != null) {
+                listener.onEvent(event);
+            }
+        } finally {
+            long end = System.nanoTime();
+            listenerTimes.record(end - start);
+            hits.increment();
+            if (countInWindow(end) && !hot) {
+                hot = true;
+                onHot.run();
+            }
+        }
+    }
+
+    /**
+     * @return whether the current one-second window exceeds the threshold
+     */
+    private synchronized boolean countInWindow(long now) {
+        if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+            windowStart = now;
+            windowHits = 0;
+        }
+        windowHits++;
+        peakHitsPerSecond = Math.max(peakHitsPerSecond, windowHits);
+        return maxHitsPerSecond > 0 && windowHits > maxHitsPerSecond;
+    }
+
+    public BreakpointDescriptor getDescriptor() {
+        return descriptor;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public synchronized int getPeakHitsPerSecond() {
+        return peakHitsPerSecond;
+    }
+
+    public LatencyHistogram getListenerTimes() {
+        return listenerTimes;
+    }
+
+    public boolean isHot() {
+        return hot;
+    }
+
+    /**
+     * @return the breakpoint, its hits, listener times and whether it was disabled as hot, for the metrics of a record
+     */
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("eventType", descriptor.eventType);
+        json.addProperty("method", descriptor.className + "." + descriptor.methodName);
+        json.addProperty("hits", getHits());
+        json.addProperty("peakHitsPerSecond", getPeakHitsPerSecond());
+        json.addProperty("disabled", isHot());
+        json.addProperty("listenerP50Millis", listenerTimes.getPercentileMillis(50));
+        json.addProperty("listenerP99Millis", listenerTimes.getPercentileMillis(99));
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return descriptor.eventType + " at " + descriptor.className + "." + descriptor.methodName
+                + ": hits=" + getHits() + " peak=" + getPeakHitsPerSecond() + "/s listener " + listenerTimes;
+    }
+}
@@ -0,0 +1,190 @@
+package com.jtyang.test.recorder;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.jtyang.test.recorder.CapturePolicy.Artifacts;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Per-session capture executor, which takes capture jobs from the breakpoint thread
+ * and runs them one by one in event order on a pooled worker.
+ * <p>
+ * At most {@code capacity} jobs wait for the device, the excess ones are handled by {@link OverflowPolicy}.
+ * What a job captures is decided by {@link CapturePolicy} on submission, events needing nothing never become jobs.
+ *
+ * @author jtyang
+ */
+public class CapturePipeline implements Disposable {
+    private static final Logger LOGGER = Logger.getInstance(CapturePipeline.class);
+
+    public enum OverflowPolicy {
+        /**
+         * Attach the new event to the latest pending job, so one capture serves both of them
+         */
+        COALESCE,
+        /**
+         * Drop the oldest pending job, leaving its events without hierarchy and screenshot
+         */
+        DROP_OLDEST
+    }
+
+    private final Deque<CaptureJob> pendingJobs = new ArrayDeque<>();
+    private final ExecutorService executor;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final CapturePolicy capturePolicy;
+    private final BiConsumer<List<MyTestRecorderEvent>, Artifacts> captureAction;
+    private final AtomicInteger coalescedCount = new AtomicInteger();
+    private final AtomicInteger skippedCount = new AtomicInteger();
+    private final AtomicInteger droppedCount = new AtomicInteger();
+    // Guarded by pendingJobs
+    private int peakPendingCount;
+    private volatile boolean disposed;
+
+    /**
+     * @param captureAction captures the given artifacts of the current device state for the given events,
+     *                      runs synchronously on the worker, never asked for {@link Artifacts#NONE}.
+     *                      Events of skipped, dropped or failed jobs get {@link MyTestRecorderEvent#completeCapture()} here,
+     *                      the other ones are completed by the action.
+     */
+    public CapturePipeline(String name, int capacity, OverflowPolicy overflowPolicy, CapturePolicy capturePolicy,
+                           BiConsumer<List<MyTestRecorderEvent>, Artifacts> captureAction) {
+        this.executor = AppExecutorUtil.createBoundedApplicationPoolExecutor(name, 1);
+        this.capacity = Math.max(1, capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.capturePolicy = capturePolicy;
+        this.captureAction = captureAction;
+    }
+
+    /**
+     * Enqueue a job capturing the result state of {@code event}, never blocks the caller.
+     */
+    public void submit(MyTestRecorderEvent event) {
+        Artifacts artifacts = capturePolicy.next(event.getEventType());
+        synchronized (pendingJobs) {
+            if (disposed) {
+                event.completeCapture();
+                return;
+            }
+            if (artifacts == Artifacts.NONE) {
+                event.completeCapture();
+                skippedCount.incrementAndGet();
+                return;
+            }
+            if (pendingJobs.size() >= capacity) {
+                if (overflowPolicy == OverflowPolicy.COALESCE) {
+                    CaptureJob last = pendingJobs.getLast();
+                    last.events.add(event);
+                    last.artifacts = last.artifacts.union(artifacts);
+                    coalescedCount.incrementAndGet();
+                    return;
+                }
+                CaptureJob dropped = pendingJobs.removeFirst();
+                dropped.events.forEach(MyTestRecorderEvent::completeCapture);
+                droppedCount.addAndGet(dropped.events.size());
+                LOGGER.debug("Capture queue is full, dropped capture of " + dropped.events.size() + " event(s)");
+            }
+            pendingJobs.addLast(new CaptureJob(event, artifacts));
+            peakPendingCount = Math.max(peakPendingCount, pendingJobs.size());
+        }
+        // One run per job, runs left behind by dropped jobs find the queue empty and return
+        executor.execute(this::runNextJob);
+    }
+
+    /**
+     * Wait until every job submitted so far is finished.
+     *
+     * @return false if timed out
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            // The executor runs sequentially, so this no-op finishes after all previously scheduled jobs
+            executor.submit(() -> {
+            }).get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            LOGGER.warn("Unexpected failure while waiting for captures", e);
+            return true;
+        }
+    }
+
+    public int getPendingCount() {
+        synchronized (pendingJobs) {
+            return pendingJobs.size();
+        }
+    }
+
+    public int getPeakPendingCount() {
+        synchronized (pendingJobs) {
+            return peakPendingCount;
+        }
+    }
+
+    public int getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * @return number of events not captured by {@link CapturePolicy}
+     */
+    public int getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    public int getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public void dispose() {
+        synchronized (pendingJobs) {
+            disposed = true;
+            pendingJobs.forEach(job -> job.events.forEach(MyTestRecorderEvent::completeCapture));
+            pendingJobs.clear();
+        }
+    }
+
+    private void runNextJob() {
+        CaptureJob job;
+        synchronized (pendingJobs) {
+            job = pendingJobs.pollFirst();
+        }
+        if (job == null) {
+            return;
+        }
+        if (disposed) {
+            job.events.forEach(MyTestRecorderEvent::completeCapture);
+            return;
+        }
+        try {
+            captureAction.accept(job.events, job.artifacts);
+        } catch (Throwable t) {
+            job.events.forEach(MyTestRecorderEvent::completeCapture);
+            LOGGER.warn("Capture failed for " + job.events.size() + " event(s)", t);
+        }
+    }
+
+    private static class CaptureJob {
+        // Touched under the lock of pendingJobs until the job is polled
+        private final List<MyTestRecorderEvent> events = new ArrayList<>(1);
+        private Artifacts artifacts;
+
+        private CaptureJob(MyTestRecorderEvent event, Artifacts artifacts) {
+            events.add(event);
+            this.artifacts = artifacts;
+        }
+    }
+}
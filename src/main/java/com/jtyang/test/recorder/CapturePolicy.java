@@ -0,0 +1,106 @@
+package com.jtyang.test.recorder;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Which artifacts to capture for the result state of each event type, configured by
+ * {@link AdaptedRecorderSettings#CAPTURE_POLICIES} as one of:
+ * <ul>
+ *     <li>{@code FULL}, {@code HIERARCHY_ONLY}, {@code SCREENSHOT_ONLY} or {@code NONE}, see {@link Artifacts}</li>
+ *     <li>{@code SAMPLED:N}, a full capture for every N-th event of the type, starting with the first, and none for the others</li>
+ * </ul>
+ * Event types without a policy are captured in full.
+ * <p>
+ * Sampling keeps a count per event type, so an instance belongs to one session.
+ *
+ * @author jtyang
+ */
+public class CapturePolicy {
+    private static final Logger LOGGER = Logger.getInstance(CapturePolicy.class);
+    private static final String SAMPLED_PREFIX = "SAMPLED:";
+
+    public enum Artifacts {
+        FULL(true, true),
+        HIERARCHY_ONLY(true, false),
+        SCREENSHOT_ONLY(false, true),
+        NONE(false, false);
+
+        private final boolean hierarchy;
+        private final boolean screenshot;
+
+        Artifacts(boolean hierarchy, boolean screenshot) {
+            this.hierarchy = hierarchy;
+            this.screenshot = screenshot;
+        }
+
+        public boolean hasHierarchy() {
+            return hierarchy;
+        }
+
+        public boolean hasScreenshot() {
+            return screenshot;
+        }
+
+        /**
+         * @return artifacts needed by both, for one capture serving events of different policies
+         */
+        public Artifacts union(Artifacts other) {
+            boolean hierarchy = this.hierarchy || other.hierarchy;
+            boolean screenshot = this.screenshot || other.screenshot;
+            if (hierarchy) {
+                return screenshot ? FULL : HIERARCHY_ONLY;
+            }
+            return screenshot ? SCREENSHOT_ONLY : NONE;
+        }
+    }
+
+    private final Map<String, Artifacts> artifactsByType = new HashMap<>();
+    private final Map<String, Integer> samplingIntervals = new HashMap<>();
+    // Guarded by this
+    private final Map<String, Integer> eventCounts = new HashMap<>();
+
+    /**
+     * @param policies policy by event type, unknown policies fall back to {@code FULL}
+     */
+    public CapturePolicy(Map<String, String> policies) {
+        policies.forEach((eventType, policy) -> {
+            try {
+                parse(eventType, policy.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                LOGGER.warn("Invalid capture policy '" + policy + "' for " + eventType + ", capturing in full", e);
+            }
+        });
+    }
+
+    public static CapturePolicy fromSettings(AdaptedRecorderSettings settings) {
+        return new CapturePolicy(settings.CAPTURE_POLICIES);
+    }
+
+    private void parse(String eventType, String policy) {
+        if (policy.startsWith(SAMPLED_PREFIX)) {
+            int interval = Integer.parseInt(policy.substring(SAMPLED_PREFIX.length()).trim());
+            if (interval < 1) {
+                throw new IllegalArgumentException("Sampling interval must be positive");
+            }
+            samplingIntervals.put(eventType, interval);
+        } else {
+            artifactsByType.put(eventType, Artifacts.valueOf(policy));
+        }
+    }
+
+    /**
+     * Decide what to capture for the next event of {@code eventType}, counting it towards sampling.
+     */
+    public synchronized Artifacts next(String eventType) {
+        Integer interval = samplingIntervals.get(eventType);
+        if (interval != null) {
+            int count = eventCounts.merge(eventType, 1, Integer::sum);
+            return (count - 1) % interval == 0 ? Artifacts.FULL : Artifacts.NONE;
+        }
+        return artifactsByType.getOrDefault(eventType, Artifacts.FULL);
+    }
+}
@@ -0,0 +1,266 @@
+package com.jtyang.test.recorder;
+
+import com.google.gct.testrecorder.event.ElementDescriptor;
+import com.google.gct.testrecorder.event.TestRecorderEvent;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.UnaryOperator;
+
+/**
+ * What a session knows of its events besides what {@link com.google.gct.testrecorder.ui.RecordingDialog} shows,
+ * in columns of primitives, for sessions of tens of thousands of events.
+ * <p>
+ * The dialog only holds a {@link LoggedEvent} per event, a plain {@link TestRecorderEvent} knowing its index here.
+ * The full {@link MyTestRecorderEvent} lives until it is captured and journaled, its journal sequence and artifacts
+ * are then only kept here, as int ids into a string pool. Element descriptors are pooled too and shared with the
+ * logged events, as the same few views come up over and over.
+ * <p>
+ * {@link #view} materializes full events one at a time for serialization, they are not kept.
+ *
+ * @author jtyang
+ */
+public class CompactEventLog {
+    private static final int NONE = -1;
+    private static final long NO_MILLIS = Long.MIN_VALUE;
+
+    private final Map<String, Integer> stringIds = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+    // Ids of strings naming artifacts that are gone, never logged again
+    private final BitSet deadStrings = new BitSet();
+    // Events whose artifacts were let go, see removeCapture
+    private final BitSet removedCaptures = new BitSet();
+    private final Map<DescriptorKey, Integer> descriptorIds = new HashMap<>();
+    private final List<ElementDescriptor> descriptors = new ArrayList<>();
+    private int size;
+    private int[] journalSequences = new int[16];
+    private int[] hierarchies = new int[16];
+    private int[] screenshots = new int[16];
+    private long[] captureSkews = new long[16];
+    private long[] captureStalenesses = new long[16];
+
+    /**
+     * @return the pooled descriptor equal to {@code descriptor}
+     */
+    public synchronized ElementDescriptor intern(ElementDescriptor descriptor) {
+        return descriptors.get(internDescriptor(descriptor));
+    }
+
+    /**
+     * Log {@code event} once it has its journal sequence, its capture is filled in later by {@link #setCapture}.
+     *
+     * @return the event to keep instead of {@code event}
+     */
+    public synchronized LoggedEvent append(MyTestRecorderEvent event) {
+        ensureCapacity(size + 1);
+        int index = size++;
+        journalSequences[index] = event.getJournalSequence();
+        hierarchies[index] = NONE;
+        screenshots[index] = NONE;
+        captureSkews[index] = NO_MILLIS;
+        captureStalenesses[index] = NO_MILLIS;
+        LoggedEvent loggedEvent = new LoggedEvent(event.getEventType(), event.getTimestamp(), index);
+        MyTestRecorderEvent.copyFields(event, loggedEvent, this::intern);
+        return loggedEvent;
+    }
+
+    /**
+     * Update the captured artifacts of the event at {@code index} from {@code event}.
+     *
+     * @return false if the capture of the event was removed, the artifacts are then not kept
+     */
+    public synchronized boolean setCapture(int index, MyTestRecorderEvent event) {
+        if (removedCaptures.get(index)) {
+            return false;
+        }
+        hierarchies[index] = internArtifact(event.getHierarchy());
+        screenshots[index] = internArtifact(event.getScreenshot());
+        captureSkews[index] = toMillis(event.getCaptureSkewMillis());
+        captureStalenesses[index] = toMillis(event.getCaptureStalenessMillis());
+        return true;
+    }
+
+    /**
+     * Forget the artifacts of the event at {@code index}, e.g. removed in the dialog, now and when it is captured.
+     *
+     * @return names of the forgotten hierarchy and screenshot (null for none), null if already removed
+     */
+    public synchronized String[] removeCapture(int index) {
+        if (removedCaptures.get(index)) {
+            return null;
+        }
+        removedCaptures.set(index);
+        String[] artifacts = {getString(hierarchies[index]), getString(screenshots[index])};
+        hierarchies[index] = NONE;
+        screenshots[index] = NONE;
+        return artifacts;
+    }
+
+    /**
+     * Forget the artifact named {@code filename} for every event, now and later, e.g. once it is deleted.
+     *
+     * @return number of events that referenced it
+     */
+    public synchronized int removeArtifact(String filename) {
+        Integer id = stringIds.get(filename);
+        if (id == null) {
+            deadStrings.set(internString(filename));
+            return 0;
+        }
+        deadStrings.set(id);
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (hierarchies[i] == id) {
+                hierarchies[i] = NONE;
+                count++;
+            }
+            if (screenshots[i] == id) {
+                screenshots[i] = NONE;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @param events logged events to include, e.g. those left in the dialog
+     * @return read-only full events in the order of {@code events}, materialized on each access
+     */
+    public List<MyTestRecorderEvent> view(List<? extends LoggedEvent> events) {
+        return new AbstractList<>() {
+            @Override
+            public MyTestRecorderEvent get(int index) {
+                return materialize(events.get(index));
+            }
+
+            @Override
+            public int size() {
+                return events.size();
+            }
+        };
+    }
+
+    private MyTestRecorderEvent materialize(LoggedEvent loggedEvent) {
+        MyTestRecorderEvent event = new MyTestRecorderEvent(loggedEvent.getEventType(), loggedEvent.getTimestamp());
+        MyTestRecorderEvent.copyFields(loggedEvent, event, UnaryOperator.identity());
+        int index = loggedEvent.getLogIndex();
+        synchronized (this) {
+            event.setJournalSequence(journalSequences[index]);
+            event.setHierarchy(getString(hierarchies[index]));
+            event.setScreenshot(getString(screenshots[index]));
+            event.setCaptureSkewMillis(captureSkews[index] == NO_MILLIS ? null : captureSkews[index]);
+            event.setCaptureStalenessMillis(captureStalenesses[index] == NO_MILLIS ? null : captureStalenesses[index]);
+        }
+        return event;
+    }
+
+    private int internArtifact(String filename) {
+        int id = internString(filename);
+        return id != NONE && deadStrings.get(id) ? NONE : id;
+    }
+
+    private int internString(String string) {
+        if (string == null) {
+            return NONE;
+        }
+        Integer id = stringIds.get(string);
+        if (id == null) {
+            id = strings.size();
+            strings.add(string);
+            stringIds.put(string, id);
+        }
+        return id;
+    }
+
+    private String getString(int id) {
+        return id == NONE ? null : strings.get(id);
+    }
+
+    private int internDescriptor(ElementDescriptor descriptor) {
+        DescriptorKey key = new DescriptorKey(descriptor);
+        Integer id = descriptorIds.get(key);
+        if (id == null) {
+            id = descriptors.size();
+            descriptors.add(new ElementDescriptor(getString(internString(descriptor.getClassName())),
+                    descriptor.getRecyclerViewChildPosition(), descriptor.getAdapterViewChildPosition(), descriptor.getGroupViewChildPosition(),
+                    getString(internString(descriptor.getResourceId())), getString(internString(descriptor.getContentDescription())),
+                    getString(internString(descriptor.getText()))));
+            descriptorIds.put(key, id);
+        }
+        return id;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= journalSequences.length) {
+            return;
+        }
+        int length = Math.max(capacity, journalSequences.length * 2);
+        journalSequences = Arrays.copyOf(journalSequences, length);
+        hierarchies = Arrays.copyOf(hierarchies, length);
+        screenshots = Arrays.copyOf(screenshots, length);
+        captureSkews = Arrays.copyOf(captureSkews, length);
+        captureStalenesses = Arrays.copyOf(captureStalenesses, length);
+    }
+
+    private static long toMillis(Long millis) {
+        return millis == null ? NO_MILLIS : millis;
+    }
+
+    /**
+     * An event as kept by the dialog, its journal sequence and artifacts are in the log.
+     */
+    public static class LoggedEvent extends TestRecorderEvent {
+        private final transient int logIndex;
+
+        private LoggedEvent(String eventType, long timestamp, int logIndex) {
+            super(eventType, timestamp);
+            this.logIndex = logIndex;
+        }
+
+        public int getLogIndex() {
+            return logIndex;
+        }
+    }
+
+    private static class DescriptorKey {
+        private final ElementDescriptor descriptor;
+        private final int hashCode;
+
+        private DescriptorKey(ElementDescriptor descriptor) {
+            this.descriptor = descriptor;
+            this.hashCode = Objects.hash(descriptor.getClassName(), descriptor.getRecyclerViewChildPosition(),
+                    descriptor.getAdapterViewChildPosition(), descriptor.getGroupViewChildPosition(), descriptor.getResourceId(),
+                    descriptor.getContentDescription(), descriptor.getText());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof DescriptorKey)) {
+                return false;
+            }
+            ElementDescriptor other = ((DescriptorKey) o).descriptor;
+            return Objects.equals(descriptor.getClassName(), other.getClassName())
+                    && descriptor.getRecyclerViewChildPosition() == other.getRecyclerViewChildPosition()
+                    && descriptor.getAdapterViewChildPosition() == other.getAdapterViewChildPosition()
+                    && descriptor.getGroupViewChildPosition() == other.getGroupViewChildPosition()
+                    && Objects.equals(descriptor.getResourceId(), other.getResourceId())
+                    && Objects.equals(descriptor.getContentDescription(), other.getContentDescription())
+                    && Objects.equals(descriptor.getText(), other.getText());
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
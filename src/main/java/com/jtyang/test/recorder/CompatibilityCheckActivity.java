@@ -0,0 +1,34 @@
+package com.jtyang.test.recorder;
+
+import com.intellij.notification.Notification;
+import com.intellij.notification.NotificationType;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.startup.StartupActivity;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Check on startup that the bundled Test Recorder still has what {@link TestRecorderAccessors} needs,
+ * rather than failing in the middle of a recording.
+ *
+ * @author jtyang
+ */
+public class CompatibilityCheckActivity implements StartupActivity.DumbAware {
+    private static final Logger LOGGER = Logger.getInstance(CompatibilityCheckActivity.class);
+    public static final String NOTIFICATION_GROUP_ID = "Adapted Test Recorder";
+    // Logged once per IDE session, notified once per project
+    private static final AtomicBoolean logged = new AtomicBoolean();
+
+    @Override
+    public void runActivity(Project project) {
+        String incompatibility = TestRecorderAccessors.getIncompatibility();
+        if (incompatibility == null) {
+            return;
+        }
+        if (logged.compareAndSet(false, true)) {
+            LOGGER.warn(incompatibility);
+        }
+        new Notification(NOTIFICATION_GROUP_ID, "Adapted Test Recorder is disabled", incompatibility, NotificationType.ERROR).notify(project);
+    }
+}
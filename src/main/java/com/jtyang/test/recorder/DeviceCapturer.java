@@ -0,0 +1,296 @@
+package com.jtyang.test.recorder;
+
+import com.android.ddmlib.CollectingOutputReceiver;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.RawImage;
+import com.google.common.base.Strings;
+import com.google.gct.testrecorder.ui.TestRecorderScreenshotTask;
+import com.jtyang.test.recorder.CapturePolicy.Artifacts;
+import com.jtyang.test.recorder.RecordingMetrics.Stage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Captures a screenshot and a hierarchy dump of a device at the same time, unlike {@link TestRecorderScreenshotTask}
+ * which takes one after the other, so a capture costs the longer of the two adb round trips rather than their sum.
+ * <p>
+ * Screenshots are kept as {@link RawFrame}s of the frame buffer, which go to {@link ScreenshotStore} as they are.
+ * It also takes either of them alone, for event types whose {@link CapturePolicy} asks for one artifact only.
+ * A screenshot alone comes with the display rotation read from {@code dumpsys input}, or with a hierarchy
+ * after all if the rotation cannot be read.
+ *
+ * @author jtyang
+ */
+public class DeviceCapturer {
+    private static final String REMOTE_DUMP_FILE = "/data/local/tmp/adapted_test_recorder_dump.xml";
+    private static final long TIMEOUT_SECONDS = 10;
+    // Printed by uiautomator once the dump is written, it exits normally even if it could not dump
+    private static final String DUMPED = "dumped to";
+    private static final Pattern MD5 = Pattern.compile("\\b[0-9a-f]{32}\\b");
+    // Display rotation as kept by the input reader, 0 to 3 like the rotation of a hierarchy dump
+    private static final Pattern SURFACE_ORIENTATION = Pattern.compile("SurfaceOrientation:\\s*([0-3])\\b");
+
+    public enum CaptureMode {
+        /**
+         * Capture through {@link TestRecorderScreenshotTask}, screenshot and hierarchy one after the other.
+         * Captures that may be skipped if unchanged go through {@link DeviceCapturer}, dump before screenshot
+         */
+        SEQUENTIAL,
+        /**
+         * Capture through {@link DeviceCapturer}
+         */
+        PARALLEL
+    }
+
+    private final IDevice device;
+    private final ExecutorService executor;
+    private final File dumpDirectory;
+    private final RecordingMetrics metrics;
+    // md5 of the hierarchy of the last full capture, set by the capture worker, cleared by invalidate from any thread
+    private volatile String lastFingerprint;
+
+    /**
+     * @param executor      grabs screenshots while the calling thread dumps the hierarchy
+     * @param dumpDirectory where hierarchy dumps are pulled to, e.g. the artifacts directory of {@link RecordJournal}
+     * @param metrics       records decode and pull times and bytes pulled, null if not needed
+     */
+    public DeviceCapturer(IDevice device, ExecutorService executor, File dumpDirectory, RecordingMetrics metrics) {
+        this.device = device;
+        this.executor = executor;
+        this.dumpDirectory = dumpDirectory;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param artifacts     what to capture, the screenshot and dump are taken at the same time if both
+     * @param skipUnchanged for a full capture, dump the hierarchy first and compare its md5 on the device
+     *                      with the last full capture, then only transfer anything if it differs.
+     *                      Screenshot and dump are no longer taken at the same time then.
+     * @return {@link Capture#isUnchanged()} if skipped
+     */
+    public Capture capture(Artifacts artifacts, boolean skipUnchanged) throws IOException {
+        if (!artifacts.hasHierarchy()) {
+            CompletableFuture<Timed<RawFrame>> screenshot = takeScreenshot();
+            Integer rotation;
+            try {
+                rotation = readRotation();
+            } catch (IOException e) {
+                screenshot.cancel(false);
+                throw e;
+            }
+            if (rotation != null) {
+                return new Capture(joinScreenshot(screenshot).value, null, null, rotation);
+            }
+            // Without the rotation the screenshot cannot be rotated upright, the hierarchy has it
+            screenshot.cancel(false);
+            artifacts = Artifacts.FULL;
+            skipUnchanged = false;
+        }
+        boolean full = artifacts.hasScreenshot();
+        boolean fingerprint = full && skipUnchanged;
+        if (full && !fingerprint) {
+            // This capture has no fingerprint to compare the next one with
+            lastFingerprint = null;
+        }
+        CompletableFuture<Timed<RawFrame>> screenshot = full && !fingerprint ? takeScreenshot() : null;
+        Timed<String> dumped;
+        File hierarchy;
+        try {
+            dumped = dump(fingerprint);
+            if (fingerprint) {
+                if (dumped.value != null && dumped.value.equals(lastFingerprint)) {
+                    return Capture.UNCHANGED;
+                }
+                screenshot = takeScreenshot();
+            }
+            hierarchy = pullDump();
+        } catch (IOException e) {
+            if (screenshot != null) {
+                screenshot.cancel(false);
+            }
+            throw e;
+        }
+        if (screenshot == null) {
+            return new Capture(null, hierarchy, null, null);
+        }
+        Timed<RawFrame> frame;
+        try {
+            frame = joinScreenshot(screenshot);
+        } catch (IOException e) {
+            // Half a capture is of no use
+            Files.deleteIfExists(hierarchy.toPath());
+            throw e;
+        }
+        lastFingerprint = dumped.value;
+        return new Capture(frame.value, hierarchy, TimeUnit.NANOSECONDS.toMillis(dumped.at - frame.at), null);
+    }
+
+    /**
+     * Forget the last capture, e.g. because it could not be stored, so that the next one is not skipped.
+     */
+    public void invalidate() {
+        lastFingerprint = null;
+    }
+
+    /**
+     * @return rotation of the display, null if {@code dumpsys input} does not tell it
+     */
+    private Integer readRotation() throws IOException {
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        try {
+            device.executeShellCommand("dumpsys input | grep SurfaceOrientation", receiver, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Could not read rotation of " + device.getSerialNumber(), e);
+        }
+        Matcher matcher = SURFACE_ORIENTATION.matcher(Strings.nullToEmpty(receiver.getOutput()));
+        return matcher.find() ? Integer.valueOf(matcher.group(1)) : null;
+    }
+
+    private CompletableFuture<Timed<RawFrame>> takeScreenshot() {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                // The frame buffer is read as soon as the request arrives, transferring it takes the most time
+                long takenAt = System.nanoTime();
+                RawImage rawImage = device.getScreenshot(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                long decodeStart = System.nanoTime();
+                RawFrame frame = RawFrame.fromRawImage(rawImage);
+                if (metrics != null) {
+                    metrics.recordSince(Stage.DECODE, decodeStart);
+                }
+                return new Timed<>(frame, takenAt);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private Timed<RawFrame> joinScreenshot(CompletableFuture<Timed<RawFrame>> screenshot) throws IOException {
+        try {
+            return screenshot.join();
+        } catch (CompletionException e) {
+            throw new IOException("Could not take screenshot of " + device.getSerialNumber(), e.getCause());
+        }
+    }
+
+    /**
+     * @return md5 of the dump if asked for and the device has {@code md5sum}, timed when the dump finished
+     * @throws IOException if uiautomator did not dump, e.g. while the UI is not idle
+     */
+    private Timed<String> dump(boolean fingerprint) throws IOException {
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        // The dump of an earlier capture must not pass for this one if uiautomator fails
+        String command = "rm -f " + REMOTE_DUMP_FILE + " && uiautomator dump " + REMOTE_DUMP_FILE;
+        if (fingerprint) {
+            command += " && md5sum " + REMOTE_DUMP_FILE;
+        }
+        try {
+            // Most of the command is uiautomator starting up, the hierarchy is read right before it returns
+            device.executeShellCommand(command, receiver, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Could not dump hierarchy of " + device.getSerialNumber(), e);
+        }
+        long dumpedAt = System.nanoTime();
+        String output = Strings.nullToEmpty(receiver.getOutput());
+        if (!output.contains(DUMPED)) {
+            throw new IOException("Could not dump hierarchy of " + device.getSerialNumber() + ": " + output.trim());
+        }
+        String md5 = null;
+        if (fingerprint) {
+            Matcher matcher = MD5.matcher(output);
+            if (matcher.find()) {
+                md5 = matcher.group();
+            }
+        }
+        return new Timed<>(md5, dumpedAt);
+    }
+
+    private File pullDump() throws IOException {
+        File hierarchy = File.createTempFile("ui_hierarchy", ".xml", dumpDirectory);
+        long start = System.nanoTime();
+        try {
+            device.pullFile(REMOTE_DUMP_FILE, hierarchy.getPath());
+        } catch (Exception e) {
+            Files.deleteIfExists(hierarchy.toPath());
+            throw e instanceof IOException ? (IOException) e : new IOException("Could not pull hierarchy of " + device.getSerialNumber(), e);
+        }
+        if (metrics != null) {
+            metrics.recordSince(Stage.PULL, start);
+            metrics.addBytesPulled(hierarchy.length());
+        }
+        return hierarchy;
+    }
+
+    public static class Capture {
+        private static final Capture UNCHANGED = new Capture(null, null, null, null);
+
+        private final RawFrame screenshot;
+        private final File hierarchyFile;
+        private final Long skewMillis;
+        private final Integer rotation;
+
+        private Capture(RawFrame screenshot, File hierarchyFile, Long skewMillis, Integer rotation) {
+            this.screenshot = screenshot;
+            this.hierarchyFile = hierarchyFile;
+            this.skewMillis = skewMillis;
+            this.rotation = rotation;
+        }
+
+        /**
+         * @return whether the hierarchy is the same as the last full capture, which has neither screenshot nor hierarchy then
+         */
+        public boolean isUnchanged() {
+            return this == UNCHANGED;
+        }
+
+        /**
+         * @return the frame as the device keeps it, not rotated to the current orientation yet, null if not captured
+         */
+        public RawFrame getScreenshot() {
+            return screenshot;
+        }
+
+        /**
+         * @return null if not captured
+         */
+        public File getHierarchyFile() {
+            return hierarchyFile;
+        }
+
+        /**
+         * @return how much later the hierarchy was dumped than the screenshot was taken, negative if earlier,
+         * null unless both were captured
+         */
+        public Long getSkewMillis() {
+            return skewMillis;
+        }
+
+        /**
+         * @return rotation of the display when a screenshot alone was captured, null if there is a hierarchy to tell it
+         */
+        public Integer getRotation() {
+            return rotation;
+        }
+    }
+
+    private static class Timed<T> {
+        private final T value;
+        private final long at;
+
+        private Timed(T value, long at) {
+            this.value = value;
+            this.at = at;
+        }
+    }
+}
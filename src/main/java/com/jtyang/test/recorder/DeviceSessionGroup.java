@@ -0,0 +1,84 @@
+package com.jtyang.test.recorder;
+
+import com.android.ddmlib.IDevice;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.util.concurrency.AppExecutorUtil;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recording sessions started by one launch on several devices, one {@link MySessionInitializer}
+ * and {@link MyRecordingDialog} per device.
+ * <p>
+ * The sessions share one {@link ScreenshotEncoder}, so encoding threads stay within
+ * {@link AdaptedRecorderSettings#ENCODE_THREADS} however many devices there are, likewise screenshots taken
+ * by their {@link DeviceCapturer}s within {@link AdaptedRecorderSettings#CAPTURE_THREADS}, and save their records
+ * into one directory, a subdirectory per device. The directory is chosen when the first session is saved.
+ *
+ * @author jtyang
+ */
+public class DeviceSessionGroup implements Disposable {
+    private final ScreenshotEncoder screenshotEncoder;
+    private final ExecutorService captureExecutor;
+    private final AtomicInteger openSessions;
+    private File recordDirectory;
+
+    public DeviceSessionGroup(int deviceCount, AdaptedRecorderSettings settings) {
+        this.screenshotEncoder = ScreenshotEncoder.fromSettings(settings);
+        this.captureExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Adapted Test Recorder Screenshot",
+                Math.max(1, settings.CAPTURE_THREADS));
+        this.openSessions = new AtomicInteger(deviceCount);
+        Disposer.register(this, screenshotEncoder);
+    }
+
+    public ScreenshotEncoder getScreenshotEncoder() {
+        return screenshotEncoder;
+    }
+
+    /**
+     * @return executor for {@link DeviceCapturer}s of the sessions
+     */
+    public ExecutorService getCaptureExecutor() {
+        return captureExecutor;
+    }
+
+    /**
+     * @return the directory chosen by the first saved session, or null if none was saved yet
+     */
+    public synchronized File getRecordDirectory() {
+        return recordDirectory;
+    }
+
+    public synchronized void setRecordDirectory(File recordDirectory) {
+        if (this.recordDirectory == null) {
+            this.recordDirectory = recordDirectory;
+        }
+    }
+
+    public File getDeviceDirectory(File recordDirectory, IDevice device) {
+        return new File(recordDirectory, getDeviceName(device));
+    }
+
+    /**
+     * Serial numbers of network devices contain ':', which is no good in file names.
+     */
+    public static String getDeviceName(IDevice device) {
+        return device.getSerialNumber().replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Called once per device when its session ends, the last one disposes the group.
+     */
+    public void sessionClosed() {
+        if (openSessions.decrementAndGet() == 0) {
+            Disposer.dispose(this);
+        }
+    }
+
+    @Override
+    public void dispose() {
+    }
+}
@@ -0,0 +1,118 @@
+package com.jtyang.test.recorder;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.util.concurrency.AppExecutorUtil;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Decides when the result state of an event is captured.
+ * <p>
+ * By default an event is captured when the next event arrives. Event types with a quiet period in
+ * {@link AdaptedRecorderSettings#COALESCE_QUIET_MILLIS} come in bursts (e.g. text input, content changes):
+ * the first event of a burst is captured once no event of its type arrived for the quiet period,
+ * or as soon as an event of another type arrives, and the rest of the burst is never captured.
+ *
+ * @author jtyang
+ */
+public class EventCoalescer implements Disposable {
+    private final Map<String, Integer> quietMillis;
+    private final Consumer<MyTestRecorderEvent> capture;
+    private final ScheduledExecutorService scheduler = AppExecutorUtil.getAppScheduledExecutorService();
+    private final AtomicInteger coalescedCount = new AtomicInteger();
+    // Guarded by this
+    private MyTestRecorderEvent pendingEvent;
+    private ScheduledFuture<?> settleTimer;
+    // Tells a stale timer, which fired while being rescheduled, from the current one
+    private long timerGeneration;
+    private boolean disposed;
+
+    /**
+     * @param quietMillis quiet period by event type, types without a positive one are not coalesced
+     * @param capture     captures the result state of an event, must not block, e.g. {@link CapturePipeline#submit}
+     */
+    public EventCoalescer(Map<String, Integer> quietMillis, Consumer<MyTestRecorderEvent> capture) {
+        this.quietMillis = new HashMap<>(quietMillis);
+        this.capture = capture;
+    }
+
+    public static EventCoalescer fromSettings(AdaptedRecorderSettings settings, Consumer<MyTestRecorderEvent> capture) {
+        return new EventCoalescer(settings.COALESCE_QUIET_MILLIS, capture);
+    }
+
+    public synchronized void offer(MyTestRecorderEvent event) {
+        if (disposed) {
+            event.completeCapture();
+            return;
+        }
+        if (settleTimer != null && pendingEvent.getEventType().equals(event.getEventType())) {
+            // Same burst, the state after this event is captured for the first one once the burst settles
+            settleTimer.cancel(false);
+            scheduleSettle();
+            event.completeCapture();
+            coalescedCount.incrementAndGet();
+            return;
+        }
+        flush();
+        pendingEvent = event;
+        if (getQuietMillis(event.getEventType()) > 0) {
+            scheduleSettle();
+        }
+    }
+
+    /**
+     * Capture the pending event now, e.g. when the recording is finished.
+     */
+    public synchronized void flush() {
+        if (settleTimer != null) {
+            settleTimer.cancel(false);
+            settleTimer = null;
+        }
+        if (pendingEvent != null) {
+            capture.accept(pendingEvent);
+            pendingEvent = null;
+        }
+    }
+
+    /**
+     * @return number of events left uncaptured as part of a burst
+     */
+    public int getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    private int getQuietMillis(String eventType) {
+        Integer millis = quietMillis.get(eventType);
+        return millis == null ? 0 : millis;
+    }
+
+    private void scheduleSettle() {
+        long generation = ++timerGeneration;
+        settleTimer = scheduler.schedule(() -> settle(generation), getQuietMillis(pendingEvent.getEventType()), TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void settle(long generation) {
+        if (generation == timerGeneration && settleTimer != null) {
+            flush();
+        }
+    }
+
+    @Override
+    public synchronized void dispose() {
+        disposed = true;
+        if (settleTimer != null) {
+            settleTimer.cancel(false);
+            settleTimer = null;
+        }
+        if (pendingEvent != null) {
+            pendingEvent.completeCapture();
+            pendingEvent = null;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.jtyang.test.recorder;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Random access to hierarchy dumps written by {@link HierarchyDeltaWriter}.
+ * <p>
+ * Opening only indexes line offsets. Reading an entry replays the deltas from its nearest keyframe,
+ * and the last rebuilt tree is kept so that reading entries in order applies each delta once.
+ * Rebuilt dumps are equivalent to the originals (same elements and attributes), not byte-identical.
+ *
+ * @author jtyang
+ */
+public class HierarchyDeltaReader implements Closeable {
+    private final RandomAccessFile file;
+    private final List<long[]> lineRanges = new ArrayList<>();
+    private final List<Integer> keyframeIndices = new ArrayList<>();
+    private final Map<String, Integer> indicesByName = new HashMap<>();
+    private int cachedIndex = -1;
+    private HierarchyTree cachedTree;
+
+    public HierarchyDeltaReader(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        indexLines(file);
+    }
+
+    public int size() {
+        return lineRanges.size();
+    }
+
+    /**
+     * @return index of the entry of the dump named {@code name}, or -1
+     */
+    public int indexOf(String name) {
+        return indicesByName.getOrDefault(name, -1);
+    }
+
+    /**
+     * Write the rebuilt dump of entry {@code index} as XML.
+     */
+    public synchronized void writeXml(int index, OutputStream out) throws IOException {
+        read(index).writeXml(out);
+    }
+
+    /**
+     * Write the rebuilt dump named {@code name} (see {@link MyTestRecorderEvent#getHierarchy()}) to {@code target}.
+     */
+    public void extract(String name, File target) throws IOException {
+        int index = indexOf(name);
+        if (index < 0) {
+            throw new IOException("No hierarchy named " + name);
+        }
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(target.toPath()))) {
+            writeXml(index, out);
+        }
+    }
+
+    synchronized HierarchyTree read(int index) throws IOException {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("No hierarchy entry " + index + ", there are " + size());
+        }
+        int keyframeIndex = keyframeIndices.get(index);
+        int from;
+        HierarchyTree tree;
+        if (cachedTree != null && cachedIndex <= index && cachedIndex >= keyframeIndex) {
+            // Continue from the cached tree, it is mutated in place
+            tree = cachedTree;
+            from = cachedIndex + 1;
+        } else {
+            tree = HierarchyTree.fromKeyframe(readEntry(keyframeIndex));
+            from = keyframeIndex + 1;
+        }
+        for (int i = from; i <= index; i++) {
+            tree.apply(readEntry(i));
+        }
+        cachedIndex = index;
+        cachedTree = tree;
+        return tree;
+    }
+
+    private JsonObject readEntry(int index) throws IOException {
+        long[] range = lineRanges.get(index);
+        byte[] bytes = new byte[(int) (range[1] - range[0])];
+        file.seek(range[0]);
+        file.readFully(bytes);
+        return JsonParser.parseString(new String(bytes, UTF_8)).getAsJsonObject();
+    }
+
+    private void indexLines(File source) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(source.toPath()), 1 << 16)) {
+            long offset = 0;
+            long lineStart = 0;
+            int b;
+            while ((b = in.read()) >= 0) {
+                offset++;
+                if (b == '\n') {
+                    if (offset - 1 > lineStart) {
+                        lineRanges.add(new long[]{lineStart, offset - 1});
+                    }
+                    lineStart = offset;
+                }
+            }
+            if (offset > lineStart) {
+                lineRanges.add(new long[]{lineStart, offset});
+            }
+        }
+        int keyframeIndex = 0;
+        byte[] prefix = new byte[1024];
+        for (int i = 0; i < lineRanges.size(); i++) {
+            long[] range = lineRanges.get(i);
+            int length = (int) Math.min(prefix.length, range[1] - range[0]);
+            file.seek(range[0]);
+            file.readFully(prefix, 0, length);
+            // Entries start with name and keyframe, nothing after them is parsed here
+            JsonReader reader = new JsonReader(new StringReader(new String(prefix, 0, length, UTF_8)));
+            reader.beginObject();
+            String name = null;
+            boolean keyframe = false;
+            for (int property = 0; property < 2; property++) {
+                if ("name".equals(reader.nextName())) {
+                    name = reader.nextString();
+                } else {
+                    keyframe = reader.nextBoolean();
+                }
+            }
+            if (keyframe) {
+                keyframeIndex = i;
+            }
+            keyframeIndices.add(keyframeIndex);
+            indicesByName.putIfAbsent(name, i);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,68 @@
+package com.jtyang.test.recorder;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes hierarchy dumps of consecutive events into one JSON Lines file,
+ * as a full keyframe every {@code keyframeInterval} entries and as a structural diff against the previous entry otherwise.
+ * <p>
+ * Every line holds {@code name} (the dump filename referenced by {@link MyTestRecorderEvent#getHierarchy()}),
+ * {@code keyframe}, and either {@code nodes} or {@code removed}/{@code set}/{@code unset}.
+ * {@link HierarchyDeltaReader} rebuilds any entry on demand.
+ *
+ * @author jtyang
+ */
+public class HierarchyDeltaWriter implements Closeable {
+    public static final String FILENAME = "hierarchies.jsonl";
+
+    private final Writer writer;
+    private final int keyframeInterval;
+    private final Gson gson = new Gson();
+    private HierarchyTree previousTree;
+    private int entryCount;
+
+    public HierarchyDeltaWriter(File file, int keyframeInterval) throws IOException {
+        this.writer = Files.newBufferedWriter(file.toPath(), UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.keyframeInterval = Math.max(1, keyframeInterval);
+    }
+
+    /**
+     * Append the dump as the next entry, named after the dump file.
+     */
+    public void append(File xmlDumpFile) throws IOException {
+        append(xmlDumpFile.getName(), HierarchyTree.parse(xmlDumpFile));
+    }
+
+    void append(String name, HierarchyTree tree) throws IOException {
+        boolean keyframe = previousTree == null || entryCount % keyframeInterval == 0;
+        // name and keyframe go first, so that the reader can index entries by parsing line prefixes only
+        JsonObject entry = new JsonObject();
+        entry.addProperty("name", name);
+        entry.addProperty("keyframe", keyframe);
+        (keyframe ? tree.toKeyframe() : tree.diff(previousTree)).entrySet().forEach(e -> entry.add(e.getKey(), e.getValue()));
+        gson.toJson(entry, writer);
+        writer.write('\n');
+        previousTree = tree;
+        entryCount++;
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,247 @@
+package com.jtyang.test.recorder;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Flat form of a uiautomator hierarchy dump: attributes of the root element, and attributes of every node
+ * keyed by its child index path (e.g. "0/3/1"), in document order.
+ * <p>
+ * Used by {@link HierarchyDeltaWriter} and {@link HierarchyDeltaReader} to compute and apply structural diffs.
+ *
+ * @author jtyang
+ */
+class HierarchyTree {
+    private static final String ROOT_TAG = "hierarchy";
+    private static final String NODE_TAG = "node";
+    // Parents before children, siblings by index
+    private static final Comparator<String> PATH_ORDER = (a, b) -> {
+        int i = 0, j = 0;
+        while (i < a.length() && j < b.length()) {
+            int nextI = a.indexOf('/', i), nextJ = b.indexOf('/', j);
+            nextI = nextI < 0 ? a.length() : nextI;
+            nextJ = nextJ < 0 ? b.length() : nextJ;
+            int compare = Integer.compare(Integer.parseInt(a, i, nextI, 10), Integer.parseInt(b, j, nextJ, 10));
+            if (compare != 0) {
+                return compare;
+            }
+            i = nextI + 1;
+            j = nextJ + 1;
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
+    };
+
+    private final Map<String, String> rootAttributes = new LinkedHashMap<>();
+    private final TreeMap<String, Map<String, String>> nodes = new TreeMap<>(PATH_ORDER);
+
+    static HierarchyTree parse(File xmlDumpFile) throws IOException {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(xmlDumpFile.toPath()))) {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                HierarchyTree tree = new HierarchyTree();
+                // Path of the current element and child counter of each open element
+                Deque<String> paths = new ArrayDeque<>();
+                Deque<int[]> childCounters = new ArrayDeque<>();
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        Map<String, String> attributes;
+                        String path;
+                        if (childCounters.isEmpty()) {
+                            attributes = tree.rootAttributes;
+                            path = "";
+                        } else {
+                            int childIndex = childCounters.peek()[0]++;
+                            path = paths.peek().isEmpty() ? Integer.toString(childIndex) : paths.peek() + "/" + childIndex;
+                            attributes = new LinkedHashMap<>();
+                            tree.nodes.put(path, attributes);
+                        }
+                        for (int i = 0; i < reader.getAttributeCount(); i++) {
+                            attributes.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                        }
+                        paths.push(path);
+                        childCounters.push(new int[1]);
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        paths.pop();
+                        childCounters.pop();
+                    }
+                }
+                return tree;
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Malformed hierarchy dump " + xmlDumpFile, e);
+        }
+    }
+
+    void writeXml(OutputStream out) throws IOException {
+        try {
+            XMLStreamWriter writer = XMLOutputFactory.newFactory().createXMLStreamWriter(out, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeStartElement(ROOT_TAG);
+            writeAttributes(writer, rootAttributes);
+            int openDepth = 0;
+            for (Map.Entry<String, Map<String, String>> node : nodes.entrySet()) {
+                int depth = depth(node.getKey());
+                for (; openDepth >= depth; openDepth--) {
+                    writer.writeEndElement();
+                }
+                writer.writeStartElement(NODE_TAG);
+                writeAttributes(writer, node.getValue());
+                openDepth = depth;
+            }
+            for (; openDepth > 0; openDepth--) {
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.flush();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    JsonObject toKeyframe() {
+        JsonObject keyframe = new JsonObject();
+        keyframe.add("root", toJson(rootAttributes));
+        JsonObject nodesJson = new JsonObject();
+        nodes.forEach((path, attributes) -> nodesJson.add(path, toJson(attributes)));
+        keyframe.add("nodes", nodesJson);
+        return keyframe;
+    }
+
+    static HierarchyTree fromKeyframe(JsonObject keyframe) {
+        HierarchyTree tree = new HierarchyTree();
+        putAll(tree.rootAttributes, keyframe.getAsJsonObject("root"));
+        for (Map.Entry<String, JsonElement> node : keyframe.getAsJsonObject("nodes").entrySet()) {
+            Map<String, String> attributes = new LinkedHashMap<>();
+            putAll(attributes, node.getValue().getAsJsonObject());
+            tree.nodes.put(node.getKey(), attributes);
+        }
+        return tree;
+    }
+
+    /**
+     * Structural diff turning {@code previous} into this tree: removed node paths, and set/unset attributes per path
+     * (a node missing from {@code previous} gets all of its attributes set).
+     */
+    JsonObject diff(HierarchyTree previous) {
+        JsonObject delta = new JsonObject();
+        delta.add("root", toJson(rootAttributes));
+        JsonArray removed = new JsonArray();
+        JsonObject set = new JsonObject();
+        JsonObject unset = new JsonObject();
+        for (String path : previous.nodes.keySet()) {
+            if (!nodes.containsKey(path)) {
+                removed.add(path);
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> node : nodes.entrySet()) {
+            Map<String, String> oldAttributes = previous.nodes.get(node.getKey());
+            JsonObject changed = new JsonObject();
+            for (Map.Entry<String, String> attribute : node.getValue().entrySet()) {
+                if (oldAttributes == null || !Objects.equals(oldAttributes.get(attribute.getKey()), attribute.getValue())) {
+                    changed.addProperty(attribute.getKey(), attribute.getValue());
+                }
+            }
+            if (changed.size() > 0) {
+                set.add(node.getKey(), changed);
+            }
+            if (oldAttributes != null) {
+                JsonArray dropped = new JsonArray();
+                for (String name : oldAttributes.keySet()) {
+                    if (!node.getValue().containsKey(name)) {
+                        dropped.add(name);
+                    }
+                }
+                if (dropped.size() > 0) {
+                    unset.add(node.getKey(), dropped);
+                }
+            }
+        }
+        delta.add("removed", removed);
+        delta.add("set", set);
+        delta.add("unset", unset);
+        return delta;
+    }
+
+    /**
+     * Apply a delta produced by {@link #diff} in place.
+     */
+    void apply(JsonObject delta) {
+        rootAttributes.clear();
+        putAll(rootAttributes, delta.getAsJsonObject("root"));
+        for (JsonElement path : delta.getAsJsonArray("removed")) {
+            nodes.remove(path.getAsString());
+        }
+        for (Map.Entry<String, JsonElement> node : delta.getAsJsonObject("set").entrySet()) {
+            putAll(nodes.computeIfAbsent(node.getKey(), path -> new LinkedHashMap<>()), node.getValue().getAsJsonObject());
+        }
+        for (Map.Entry<String, JsonElement> node : delta.getAsJsonObject("unset").entrySet()) {
+            Map<String, String> attributes = nodes.get(node.getKey());
+            if (attributes != null) {
+                for (Iterator<JsonElement> it = node.getValue().getAsJsonArray().iterator(); it.hasNext(); ) {
+                    attributes.remove(it.next().getAsString());
+                }
+            }
+        }
+    }
+
+    int getNodeCount() {
+        return nodes.size();
+    }
+
+    private static int depth(String path) {
+        int depth = 1;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    private static void writeAttributes(XMLStreamWriter writer, Map<String, String> attributes) throws XMLStreamException {
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            writer.writeAttribute(attribute.getKey(), attribute.getValue());
+        }
+    }
+
+    private static JsonObject toJson(Map<String, String> attributes) {
+        JsonObject json = new JsonObject();
+        attributes.forEach(json::addProperty);
+        return json;
+    }
+
+    private static void putAll(Map<String, String> attributes, JsonObject json) {
+        for (Map.Entry<String, JsonElement> attribute : json.entrySet()) {
+            attributes.put(attribute.getKey(), attribute.getValue().getAsString());
+        }
+    }
+}
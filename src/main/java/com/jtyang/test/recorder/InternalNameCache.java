@@ -0,0 +1,128 @@
+package com.jtyang.test.recorder;
+
+import com.google.gct.testrecorder.event.TestRecorderEvent;
+import com.google.gct.testrecorder.util.ClassHelper;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.psi.util.PsiModificationTracker;
+import com.intellij.util.concurrency.AppExecutorUtil;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-project cache of {@link ClassHelper#getInternalName}, which is a PSI lookup repeated for the same
+ * few view classes over and over. Names that do not resolve are cached too.
+ * Dropped whenever Java classes or project roots change, not on every PSI change.
+ * <p>
+ * Unlike {@link ClassHelper}, it can be called outside a read action, and never waits for indexing.
+ *
+ * @author jtyang
+ */
+public class InternalNameCache {
+    private static final Logger LOGGER = Logger.getInstance(InternalNameCache.class);
+    // Cached for names that do not resolve, compared by identity
+    private static final String UNRESOLVED = new String("<unresolved>");
+
+    private final Project project;
+    private final Map<String, String> internalNames = new ConcurrentHashMap<>();
+    private volatile long stamp = -1;
+
+    public InternalNameCache(Project project) {
+        this.project = project;
+    }
+
+    public static InternalNameCache getInstance(Project project) {
+        return ServiceManager.getService(project, InternalNameCache.class);
+    }
+
+    /**
+     * Resolve a class name, or take it as it is if it does not resolve or indices are not ready.
+     */
+    public String getInternalName(String className) {
+        if (className == null) {
+            return null;
+        }
+        validate();
+        String internalName = internalNames.get(className);
+        if (internalName == null) {
+            if (DumbService.isDumb(project)) {
+                // Not cached, it is resolved once prefetched in smart mode
+                return className;
+            }
+            internalName = ApplicationManager.getApplication().isReadAccessAllowed()
+                    ? resolve(className)
+                    : ReadAction.compute(() -> DumbService.isDumb(project) ? null : resolve(className));
+            if (internalName == null) {
+                return className;
+            }
+            internalNames.put(className, internalName);
+        }
+        return internalName == UNRESOLVED ? className : internalName;
+    }
+
+    /**
+     * Resolve class names of element descriptors of {@code event} in background once indices are ready,
+     * so that serializing the event later hits the cache.
+     */
+    public void prefetch(TestRecorderEvent event) {
+        Set<String> classNames = new LinkedHashSet<>();
+        for (int i = 0; i < event.getElementDescriptorsCount(); i++) {
+            String className = event.getElementDescriptor(i).getClassName();
+            if (className != null && !internalNames.containsKey(className)) {
+                classNames.add(className);
+            }
+        }
+        if (classNames.isEmpty()) {
+            return;
+        }
+        ReadAction.nonBlocking(() -> {
+            long resolvedStamp = currentStamp();
+            Map<String, String> resolved = new HashMap<>();
+            for (String className : classNames) {
+                resolved.put(className, resolve(className));
+            }
+            // Names resolved against outdated PSI are not trusted
+            if (resolvedStamp == currentStamp()) {
+                validate();
+                internalNames.putAll(resolved);
+            }
+            return null;
+        }).inSmartMode(project).expireWith(project).submit(AppExecutorUtil.getAppExecutorService())
+                .onError(t -> LOGGER.debug("Could not prefetch internal names", t));
+    }
+
+    /**
+     * @return the internal name, or {@link #UNRESOLVED}. Needs read access and smart mode
+     */
+    private String resolve(String className) {
+        String internalName = ClassHelper.getInternalName(project, className);
+        return internalName == null ? UNRESOLVED : internalName;
+    }
+
+    private void validate() {
+        long current = currentStamp();
+        if (stamp != current) {
+            synchronized (internalNames) {
+                if (stamp != current) {
+                    internalNames.clear();
+                    stamp = current;
+                }
+            }
+        }
+    }
+
+    private long currentStamp() {
+        // Both counters only grow, so their sum changes whenever either does
+        return PsiModificationTracker.getInstance(project).getJavaStructureModificationTracker().getModificationCount()
+                + ProjectRootManager.getInstance(project).getModificationCount();
+    }
+}
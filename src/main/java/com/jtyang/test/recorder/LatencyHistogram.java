@@ -0,0 +1,87 @@
+package com.jtyang.test.recorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in microseconds. Each power-of-two range is split into
+ * {@link #SUB_BUCKETS} linear buckets, so a percentile is off by at most an eighth rather than 2x.
+ *
+ * @author jtyang
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Ranges [2^e, 2^(e+1)) microseconds split into sub-buckets, e from SUB_BUCKET_BITS up to half an hour.
+    // Durations below SUB_BUCKETS microseconds have a bucket each, the last bucket takes everything longer.
+    private static final int MAX_EXPONENT = 31;
+    private static final int BUCKET_COUNT = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        buckets.incrementAndGet(bucketOf(micros));
+        count.increment();
+        totalNanos.add(nanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalNanos.sum());
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return upper bound of the bucket the percentile falls in, in milliseconds
+     */
+    public double getPercentileMillis(double percentile) {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= Math.max(1, rank)) {
+                return upperBoundMicros(i) / 1000.0;
+            }
+        }
+        return upperBoundMicros(BUCKET_COUNT - 1) / 1000.0;
+    }
+
+    private static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        // The top bits below the leading one pick the sub-bucket
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return Math.min(BUCKET_COUNT - 1, SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket);
+    }
+
+    /**
+     * @return exclusive upper bound of bucket {@code i} in microseconds
+     */
+    private static long upperBoundMicros(int i) {
+        if (i < SUB_BUCKETS) {
+            return i + 1;
+        }
+        int exponent = SUB_BUCKET_BITS + (i - SUB_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (i - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d total=%dms p50<=%.3fms p90<=%.3fms p99<=%.3fms", getCount(), getTotalMillis(),
+                getPercentileMillis(50), getPercentileMillis(90), getPercentileMillis(99));
+    }
+}
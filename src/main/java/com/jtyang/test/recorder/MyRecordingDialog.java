@@ -5,37 +5,59 @@ import com.google.gct.testrecorder.event.ElementDescriptor;
 import com.google.gct.testrecorder.event.TestRecorderEvent;
 import com.google.gct.testrecorder.event.TestRecorderEventListener;
 import com.google.gct.testrecorder.ui.RecordingDialog;
-import com.google.gct.testrecorder.util.ClassHelper;
-import com.google.gct.testrecorder.util.ImageHelper;
-import com.google.gct.testrecorder.util.UiAutomatorNodeHelper;
-import com.google.gson.GsonBuilder;
+import com.google.gct.testrecorder.ui.ScreenshotCallback;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
+import com.intellij.notification.Notification;
+import com.intellij.notification.NotificationType;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.fileChooser.FileSaverDescriptor;
 import com.intellij.openapi.fileChooser.ex.FileSaverDialogImpl;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.VirtualFileWrapper;
+import com.intellij.ui.components.JBLabel;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.jtyang.test.recorder.ArtifactManager.Kind;
+import com.jtyang.test.recorder.CapturePolicy.Artifacts;
+import com.jtyang.test.recorder.CompactEventLog.LoggedEvent;
+import com.jtyang.test.recorder.DeviceCapturer.CaptureMode;
 import com.jtyang.test.recorder.MyTestRecorderEvent.DummyTestRecordEvent;
-import org.apache.commons.io.FileUtils;
+import com.jtyang.test.recorder.RecordingMetrics.Stage;
 import org.jetbrains.android.facet.AndroidFacet;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
+import javax.swing.JComponent;
+import javax.swing.JPanel;
+import javax.swing.Timer;
+import java.awt.BorderLayout;
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Method;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
+import java.util.function.UnaryOperator;
 
-import static com.google.gct.testrecorder.event.TestRecorderEvent.TEXT_CHANGE;
-import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.apache.commons.lang.StringUtils.isEmpty;
 
 /**
@@ -45,70 +67,384 @@ import static org.apache.commons.lang.StringUtils.isEmpty;
  * @see com.google.gct.testrecorder.ui.RecordingDialog
  */
 public class MyRecordingDialog extends RecordingDialog implements TestRecorderEventListener {
+    private static final Logger LOGGER = Logger.getInstance(MyRecordingDialog.class);
+    private static final int METRICS_REFRESH_MILLIS = 500;
 
     private final IDevice myDevice;
     private final String myPackageName;
     private final boolean myIsRecordingTest;
     private final Project myProject;
-    // Redundant file might be created during recording,
-    // so map filename to File object for further filtering
-    private final Map<String, File> hierarchyXmlFiles = new HashMap<>();
-    private final Map<String, File> screenshotFiles = new HashMap<>();
-    private final DummyTestRecordEvent startEvent;
-    private MyTestRecorderEvent previousEvent;
+    // Redundant file might be created during recording, which are deleted unless events reference them
+    private final ArtifactManager artifactManager;
+    // Whether the user was told about screenshots evicted over the disk budget
+    private final AtomicBoolean evictionNotified = new AtomicBoolean();
+    private final CapturePipeline capturePipeline;
+    private final ScreenshotEncoder screenshotEncoder;
+    private final ScreenshotStore screenshotStore;
+    private final RecordJournal recordJournal;
+    // What the record is saved from, along with the events of the dialog. The journal only serves recovery
+    private final CompactEventLog eventLog = new CompactEventLog();
+    // Takes every capture in DeviceCapturer.CaptureMode.PARALLEL, otherwise those of a single artifact and those skipped if unchanged
+    private final DeviceCapturer deviceCapturer;
+    private final CaptureMode captureMode;
+    private final boolean skipUnchangedCaptures;
+    // Artifacts of the last full capture, reused while the device does not change. Only set by the capture worker,
+    // read when artifacts are deleted
+    private volatile String lastHierarchyFilename;
+    private volatile CompletableFuture<String> lastScreenshotFilename;
+    // Rotation of the device at the last capture, for screenshots captured alone without their own rotation
+    private int lastRotation;
+    // Null unless recording on several devices at once
+    private final DeviceSessionGroup deviceGroup;
+    private final EventCoalescer eventCoalescer;
+    private final RecordingMetrics recordingMetrics = new RecordingMetrics();
+    // Breakpoints of the session with their hits, saved with the metrics. Empty until set by the session initializer
+    private volatile Collection<BreakpointStats> breakpointStats = List.of();
+    // Created by createCenterPanel, which may run within the super constructor, so it must have no initializer
+    private JBLabel metricsLabel;
+    // Not shown in the dialog, but saved as the first event
+    private final LoggedEvent loggedStartEvent;
 
     public MyRecordingDialog(AndroidFacet facet, IDevice device, String packageName, String launchedActivityName, boolean isRecordingTest) {
+        this(facet, device, packageName, launchedActivityName, isRecordingTest, null);
+    }
+
+    /**
+     * @param deviceGroup sessions recording on other devices at the same time, null if none
+     */
+    public MyRecordingDialog(AndroidFacet facet, IDevice device, String packageName, String launchedActivityName, boolean isRecordingTest,
+                             DeviceSessionGroup deviceGroup) {
         super(facet, device, packageName, launchedActivityName, isRecordingTest);
         myDevice = device;
         myPackageName = packageName;
         myIsRecordingTest = isRecordingTest;
         myProject = facet.getModule().getProject();
-        previousEvent = startEvent = new DummyTestRecordEvent("RECORD_START");
+        this.deviceGroup = deviceGroup;
+        DummyTestRecordEvent startEvent = new DummyTestRecordEvent("RECORD_START");
+        String sessionName = packageName + "_record_" + startEvent.getTimestamp();
+        if (deviceGroup != null) {
+            sessionName += "_" + DeviceSessionGroup.getDeviceName(device);
+        }
+        try {
+            recordJournal = RecordJournal.create(myProject, sessionName, recordingMetrics);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create record journal", e);
+        }
+        recordJournal.append(startEvent);
+        loggedStartEvent = logEvent(startEvent);
+        AdaptedRecorderSettings settings = AdaptedRecorderSettings.getInstance();
+        artifactManager = ArtifactManager.fromSettings(settings, this::onArtifactDeleted);
+        Disposer.register(getDisposable(), artifactManager);
+        capturePipeline = new CapturePipeline("Adapted Test Recorder Capture " + device.getSerialNumber(), settings.CAPTURE_QUEUE_CAPACITY,
+                settings.CAPTURE_OVERFLOW_POLICY, CapturePolicy.fromSettings(settings), this::capture);
+        Disposer.register(getDisposable(), capturePipeline);
+        if (deviceGroup != null) {
+            screenshotEncoder = deviceGroup.getScreenshotEncoder();
+            Disposer.register(getDisposable(), deviceGroup::sessionClosed);
+        } else {
+            screenshotEncoder = ScreenshotEncoder.fromSettings(settings);
+            Disposer.register(getDisposable(), screenshotEncoder);
+        }
+        screenshotStore = ScreenshotStore.fromSettings(screenshotEncoder, settings, recordJournal.getArtifactsDirectory(), recordingMetrics);
+        // A device takes one screenshot at a time, devices recording together share a bounded executor
+        ExecutorService captureExecutor = deviceGroup != null ? deviceGroup.getCaptureExecutor()
+                : AppExecutorUtil.createBoundedApplicationPoolExecutor("Adapted Test Recorder Screenshot", 1);
+        deviceCapturer = new DeviceCapturer(device, captureExecutor, recordJournal.getArtifactsDirectory(), recordingMetrics);
+        captureMode = settings.CAPTURE_MODE;
+        skipUnchangedCaptures = settings.SKIP_UNCHANGED_CAPTURES;
+        // Bursts settle on a timer, which may capture as soon as the first event of one is offered
+        eventCoalescer = EventCoalescer.fromSettings(settings, capturePipeline::submit);
+        Disposer.register(getDisposable(), eventCoalescer);
+        eventCoalescer.offer(startEvent);
+        Timer metricsTimer = new Timer(METRICS_REFRESH_MILLIS, e -> {
+            releaseRemovedEvents();
+            updateMetricsLabel();
+        });
+        metricsTimer.start();
+        Disposer.register(getDisposable(), metricsTimer::stop);
+    }
+
+    @Override
+    protected JComponent createCenterPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.add(super.createCenterPanel(), BorderLayout.CENTER);
+        metricsLabel = new JBLabel();
+        panel.add(metricsLabel, BorderLayout.SOUTH);
+        return panel;
+    }
+
+    private void updateMetricsLabel() {
+        if (metricsLabel != null) {
+            metricsLabel.setText(String.format("%s | queue %d, coalesced %d, dropped %d", recordingMetrics.getSummary(),
+                    capturePipeline.getPendingCount(), capturePipeline.getCoalescedCount() + eventCoalescer.getCoalescedCount(),
+                    capturePipeline.getDroppedCount()));
+        }
+    }
+
+    /**
+     * @param breakpointStats live view of the breakpoints of the session, written into the metrics of the record
+     */
+    public void setBreakpointStats(Collection<BreakpointStats> breakpointStats) {
+        this.breakpointStats = breakpointStats;
+    }
+
+    /**
+     * @return {@link #recordingMetrics} with the counts of the capture stages and the breakpoints
+     */
+    private JsonObject getMetricsJson() {
+        JsonObject json = recordingMetrics.toJson();
+        json.addProperty("peakQueueDepth", capturePipeline.getPeakPendingCount());
+        json.addProperty("coalescedByQueue", capturePipeline.getCoalescedCount());
+        json.addProperty("coalescedBursts", eventCoalescer.getCoalescedCount());
+        json.addProperty("skippedByPolicy", capturePipeline.getSkippedCount());
+        json.addProperty("dropped", capturePipeline.getDroppedCount());
+        json.addProperty("duplicateScreenshots", screenshotStore.getDuplicateCount());
+        json.addProperty("evictedScreenshots", artifactManager.getEvictedCount());
+        json.addProperty("evictedReferencedScreenshots", artifactManager.getEvictedReferencedCount());
+        JsonArray breakpoints = new JsonArray();
+        breakpointStats.forEach(stats -> breakpoints.add(stats.toJson()));
+        json.add("breakpoints", breakpoints);
+        return json;
+    }
+
+    /**
+     * Release the artifacts of events removed in the dialog since the last call, so that unreferenced ones
+     * are deleted while recording. Runs on the EDT, along with the metrics.
+     */
+    private void releaseRemovedEvents() {
+        BitSet shown = new BitSet();
+        shown.set(loggedStartEvent.getLogIndex());
+        for (Object action : TestRecorderAccessors.getAllModelActions(this)) {
+            if (action instanceof LoggedEvent) {
+                shown.set(((LoggedEvent) action).getLogIndex());
+            }
+        }
+        // Events logged after the last shown one may not have reached the dialog yet
+        int lastShown = shown.length() - 1;
+        List<String[]> released = new ArrayList<>();
+        for (int i = shown.nextClearBit(0); i < lastShown; i = shown.nextClearBit(i + 1)) {
+            String[] artifacts = eventLog.removeCapture(i);
+            if (artifacts != null) {
+                released.add(artifacts);
+            }
+        }
+        if (!released.isEmpty()) {
+            // Deleting files is no job for the EDT
+            AppExecutorUtil.getAppExecutorService().execute(() -> released.forEach(this::release));
+        }
+    }
+
+    /**
+     * @param artifacts hierarchy and screenshot of an event no longer referencing them, null for none
+     */
+    private void release(String... artifacts) {
+        for (String filename : artifacts) {
+            artifactManager.release(filename, 1);
+        }
+    }
+
+    /**
+     * {@link ArtifactManager.DeletionListener} of {@link #artifactManager}, makes sure nothing refers to deleted artifacts.
+     */
+    private void onArtifactDeleted(String filename, Kind kind, int references) {
+        if (kind == Kind.SCREENSHOT) {
+            screenshotStore.forget(filename);
+        }
+        CompletableFuture<String> screenshotFilename = lastScreenshotFilename;
+        if (filename.equals(lastHierarchyFilename) || screenshotFilename != null && filename.equals(screenshotFilename.getNow(null))) {
+            deviceCapturer.invalidate();
+        }
+        if (references > 0) {
+            eventLog.removeArtifact(filename);
+            if (evictionNotified.compareAndSet(false, true)) {
+                new Notification(CompatibilityCheckActivity.NOTIFICATION_GROUP_ID, "Screenshots evicted",
+                        "Recording artifacts exceed the disk budget, the oldest screenshots are dropped from the record",
+                        NotificationType.WARNING).notify(myProject);
+            }
+        }
     }
 
     @Override
     public void onEvent(TestRecorderEvent event) {
         if (TestRecorderEvent.SUPPORTED_EVENTS.contains(event.getEventType())) {
-            MyTestRecorderEvent myTestRecorderEvent = MyTestRecorderEvent.getMyRecorderEvent(event);
-            super.onEvent(myTestRecorderEvent);
-            // Do not interrupt text input, as it brings performance overhead,
-            // also is meaningless 'cause what we interest in is the state when input finish
-            if (!TEXT_CHANGE.equals(previousEvent.getEventType()) || !TEXT_CHANGE.equals(event.getEventType())) {
-                // When the task queue (indeed execute immediately),
-                // it record the result state of previous event
-                getMyRecorderScreenshotTask(previousEvent).queue();
-                previousEvent = myTestRecorderEvent;
-            }
+            recordingMetrics.record(Stage.DISPATCH, RecordingMetrics.nanosSince(event.getTimestamp()));
+            MyTestRecorderEvent myTestRecorderEvent = MyTestRecorderEvent.getMyRecorderEvent(event, eventLog::intern);
+            // Resolved while the device is being captured, journaling the event then needs no index
+            InternalNameCache.getInstance(myProject).prefetch(myTestRecorderEvent);
+            // Written out once its capture completes
+            recordJournal.append(myTestRecorderEvent);
+            // The dialog keeps the slim logged event, the full one is let go once captured and journaled
+            super.onEvent(logEvent(myTestRecorderEvent));
+            // Captures the result state of the previous event, or of a burst of events such as text input
+            // once it settles, as what we interest in is the state when input finish
+            eventCoalescer.offer(myTestRecorderEvent);
         }
     }
 
-    protected MyTestRecorderScreenshotTask getMyRecorderScreenshotTask(MyTestRecorderEvent event) {
-        return new MyTestRecorderScreenshotTask(myProject, myDevice, myPackageName, (image, model) -> {
-            File hierarchyXml = ((UiAutomatorModelStub) model).getXmlDumpFile();
-            String hierarchyXmlFilename = hierarchyXml.getName();
-            hierarchyXmlFiles.put(hierarchyXmlFilename, hierarchyXml);
-            event.setHierarchy(hierarchyXmlFilename);
+    /**
+     * Log {@code event} after it got its journal sequence, and its artifacts once captured.
+     */
+    private LoggedEvent logEvent(MyTestRecorderEvent event) {
+        LoggedEvent loggedEvent = eventLog.append(event);
+        int index = loggedEvent.getLogIndex();
+        event.getCapture().thenAccept(e -> {
+            if (!eventLog.setCapture(index, e)) {
+                // Removed in the dialog before it was captured
+                release(e.getHierarchy(), e.getScreenshot());
+            }
+        });
+        return loggedEvent;
+    }
+
+    /**
+     * Capture job of {@link #capturePipeline}, captures the device synchronously on the capture worker.
+     */
+    private void capture(List<MyTestRecorderEvent> events, Artifacts artifacts) {
+        long capturedAt = System.currentTimeMillis();
+        for (MyTestRecorderEvent event : events) {
+            long staleness = Math.max(0, capturedAt - event.getTimestamp());
+            event.setCaptureStalenessMillis(staleness);
+            recordingMetrics.record(Stage.STALENESS, TimeUnit.MILLISECONDS.toNanos(staleness));
+        }
+        long start = System.nanoTime();
+        // Nothing to reuse yet for the first capture
+        boolean skipUnchanged = skipUnchangedCaptures && lastHierarchyFilename != null;
+        // Comparing the md5 takes the dump before the screenshot, as the task does, so a full capture goes
+        // through the capturer in SEQUENTIAL mode too and the task only runs when there is nothing to compare
+        if (captureMode == CaptureMode.PARALLEL || artifacts != Artifacts.FULL || skipUnchanged) {
+            DeviceCapturer.Capture capture;
             try {
-                File screenshot = File.createTempFile("ui_screenshot", ".png");
-                screenshot.deleteOnExit();
-                BufferedImage preparedImage = ImageHelper.rotateImage(image, UiAutomatorNodeHelper.getRotation(model.getXmlRootNode()));
-                ImageIO.write(preparedImage, "png", screenshot);
-                String screenshotFilename = screenshot.getName();
-                screenshotFiles.put(screenshotFilename, screenshot);
-                event.setScreenshot(screenshotFilename);
+                capture = deviceCapturer.capture(artifacts, skipUnchanged);
             } catch (IOException e) {
-                e.printStackTrace();
+                throw new UncheckedIOException(e);
+            } finally {
+                recordingMetrics.recordSince(Stage.CAPTURE, start);
+            }
+            if (capture.isUnchanged()) {
+                recordingMetrics.addReusedCapture();
+                String hierarchyFilename = lastHierarchyFilename;
+                artifactManager.retain(hierarchyFilename, events.size());
+                events.forEach(event -> event.setHierarchy(hierarchyFilename));
+                completeWithScreenshot(events, lastScreenshotFilename.thenApply(filename -> {
+                    artifactManager.retain(filename, events.size());
+                    return filename;
+                }));
+                return;
+            }
+            // Set before the callback, which may complete the events right away
+            events.forEach(event -> event.setCaptureSkewMillis(capture.getSkewMillis()));
+            if (capture.getRotation() != null) {
+                // A screenshot alone, rotated as the device was when it was taken
+                lastRotation = capture.getRotation();
+            }
+            File hierarchyFile = capture.getHierarchyFile();
+            RawFrame screenshot = capture.getScreenshot();
+            onCaptured(events, hierarchyFile == null ? null : new UiAutomatorModelStub(hierarchyFile),
+                    screenshot == null ? null : rotation -> screenshotStore.store(screenshot, rotation));
+            return;
+        }
+        // The capture of the task has no fingerprint, the next one must not be compared with an older one
+        deviceCapturer.invalidate();
+        MyTestRecorderScreenshotTask task = getMyRecorderScreenshotTask(events);
+        ProgressIndicator indicator = new EmptyProgressIndicator();
+        ProgressManager.getInstance().runProcess(() -> task.run(indicator), indicator);
+        recordingMetrics.recordSince(Stage.CAPTURE, start);
+        task.onSuccess();
+        if (events.get(0).getHierarchy() == null) {
+            // The task failed and did not call back, so nothing more is coming for these events
+            artifactManager.discard(TestRecorderAccessors.getUiHierarchyLocalFile(task));
+            events.forEach(MyTestRecorderEvent::completeCapture);
+        }
+    }
+
+    /**
+     * @param events events sharing the same result state, more than one if captures are coalesced
+     */
+    protected MyTestRecorderScreenshotTask getMyRecorderScreenshotTask(List<MyTestRecorderEvent> events) {
+        return new MyTestRecorderScreenshotTask(myProject, myDevice, myPackageName, createScreenshotCallback(events));
+    }
+
+    /**
+     * @param events events sharing the same result state, more than one if captures are coalesced
+     */
+    private ScreenshotCallback createScreenshotCallback(List<MyTestRecorderEvent> events) {
+        return (image, model) -> onCaptured(events, (UiAutomatorModelStub) model, rotation -> screenshotStore.store(image, rotation));
+    }
+
+    /**
+     * @param hierarchy       null if not captured
+     * @param storeScreenshot stores the screenshot rotated by the given rotation of the hierarchy, null if not captured
+     */
+    private void onCaptured(List<MyTestRecorderEvent> events, UiAutomatorModelStub hierarchy, IntFunction<CompletableFuture<File>> storeScreenshot) {
+        String hierarchyXmlFilename = null;
+        if (hierarchy != null) {
+            lastRotation = hierarchy.getRotation();
+            // Stage the dump in the journal, it must not be read through the model afterwards
+            hierarchyXmlFilename = artifactManager.register(recordJournal.adopt(hierarchy.getXmlDumpFile()), Kind.HIERARCHY, events.size());
+            String filename = hierarchyXmlFilename;
+            events.forEach(event -> event.setHierarchy(filename));
+        }
+        if (storeScreenshot == null) {
+            events.forEach(MyTestRecorderEvent::completeCapture);
+            return;
+        }
+        // Rotate and encode on the encode pool, the capture worker moves on to the next capture.
+        // Duplicates of a stored frame complete with the file of that frame.
+        CompletableFuture<String> screenshotFilename = storeScreenshot.apply(lastRotation).handle((screenshot, t) -> {
+            if (screenshot != null) {
+                // Null if a duplicate of a screenshot evicted meanwhile
+                return artifactManager.register(screenshot, Kind.SCREENSHOT, events.size());
+            }
+            if (!(t instanceof CancellationException)) {
+                LOGGER.warn("Could not encode screenshot", t);
             }
+            // Do not let the next captures reuse the missing screenshot
+            deviceCapturer.invalidate();
+            return null;
+        });
+        if (hierarchyXmlFilename != null) {
+            lastHierarchyFilename = hierarchyXmlFilename;
+            lastScreenshotFilename = screenshotFilename;
+        }
+        completeWithScreenshot(events, screenshotFilename);
+    }
+
+    /**
+     * @param screenshotFilename completes with null if there is no screenshot, its references are already counted
+     */
+    private void completeWithScreenshot(List<MyTestRecorderEvent> events, CompletableFuture<String> screenshotFilename) {
+        screenshotFilename.thenAccept(filename -> {
+            if (filename != null) {
+                events.forEach(event -> event.setScreenshot(filename));
+            }
+            events.forEach(MyTestRecorderEvent::completeCapture);
         });
     }
 
+    @Override
+    public void doCancelAction() {
+        super.doCancelAction();
+        // The record is discarded, a test recording has none to recover either
+        recordJournal.delete();
+    }
+
     @Override
     protected void doOKAction() {
         if (myIsRecordingTest) {
             super.doOKAction();
+            // The test is generated from the events of the dialog, the journal and its artifacts are of no use
+            recordJournal.delete();
         } else {
             // Result state of last event is not recorded so do it here
-            getMyRecorderScreenshotTask(previousEvent).queue();
+            eventCoalescer.flush();
+            ProgressManager.getInstance().runProcessWithProgressSynchronously(this::awaitCaptures, "Finishing Captures", false, myProject);
+            File groupDirectory = deviceGroup == null ? null : deviceGroup.getRecordDirectory();
+            if (groupDirectory != null) {
+                // Another device of the launch chose where to save
+                saveRecordOrShowError(deviceGroup.getDeviceDirectory(groupDirectory, myDevice));
+                close(OK_EXIT_CODE);
+                return;
+            }
             String recordName = myPackageName + "_record_" + System.currentTimeMillis();
             FileSaverDescriptor descriptor = new FileSaverDescriptor("Setup Record Directory", "Setup or choose a directory to persist record files");
             FileSaverDialogImpl fileSaverDialog = new FileSaverDialogImpl(descriptor, this.myProject);
@@ -116,12 +452,11 @@ public class MyRecordingDialog extends RecordingDialog implements TestRecorderEv
             if (fileWrapper != null) {
                 File recordDir = fileWrapper.getFile();
                 if (recordDir.mkdirs()) {
-                    try {
-                        saveRecord(recordDir);
-                    } catch (Exception ex) {
-                        String message = isEmpty(ex.getMessage()) ? "Unknown error" : ex.getMessage();
-                        Messages.showMessageDialog(getRootPane(), message, "Could not Save Robo Script to a File", null);
+                    if (deviceGroup != null) {
+                        deviceGroup.setRecordDirectory(recordDir);
+                        recordDir = deviceGroup.getDeviceDirectory(recordDir, myDevice);
                     }
+                    saveRecordOrShowError(recordDir);
                 }
             }
 
@@ -131,53 +466,124 @@ public class MyRecordingDialog extends RecordingDialog implements TestRecorderEv
         }
     }
 
+    private void saveRecordOrShowError(File recordDir) {
+        try {
+            saveRecord(recordDir);
+        } catch (Exception ex) {
+            String message = isEmpty(ex.getMessage()) ? "Unknown error" : ex.getMessage();
+            Messages.showMessageDialog(getRootPane(), message, "Could not Save Robo Script to a File", null);
+        }
+    }
+
+    private void awaitCaptures() {
+        try {
+            if (!capturePipeline.awaitIdle(30, TimeUnit.SECONDS)) {
+                LOGGER.warn(capturePipeline.getPendingCount() + " capture(s) still pending, saving without them");
+            }
+            if (!screenshotEncoder.awaitIdle(30, TimeUnit.SECONDS)) {
+                LOGGER.warn("Screenshot encoding timed out, saving without the pending screenshots");
+            }
+            if (!recordJournal.awaitIdle(30, TimeUnit.SECONDS)) {
+                LOGGER.warn("Journal writing timed out, saving without the pending events");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     public void saveRecord(File recordDirectory) throws Exception {
-        Method getAllModelActions = this.getClass().getSuperclass().getDeclaredMethod("getAllModelActions");
-        getAllModelActions.setAccessible(true);
-        List<?> ret = (List<?>) getAllModelActions.invoke(this);
-        List<MyTestRecorderEvent> allModelActions = new ArrayList<>(ret.size()+1);
-        allModelActions.add(startEvent);
+        List<?> ret = TestRecorderAccessors.getAllModelActions(this);
+        List<LoggedEvent> loggedEvents = new ArrayList<>(ret.size()+1);
+        loggedEvents.add(loggedStartEvent);
         for (Object o : ret) {
-            // Consider only MyTestRecorderEvents.
-            if (o instanceof MyTestRecorderEvent) {
-                allModelActions.add(((MyTestRecorderEvent) o));
+            // Consider only events logged by us.
+            if (o instanceof LoggedEvent) {
+                loggedEvents.add(((LoggedEvent) o));
             }
         }
-        File jsonScriptFile = new File(recordDirectory, "robo_script.json");
-        FileUtils.write(jsonScriptFile, getJsonForActions(myProject, allModelActions), UTF_8);
-        // Filter hierarchy and screenshot file that occur in related fields of MyTestRecorderEvent object
-        // and copy them from %TEMP% to destined directory
-        for (MyTestRecorderEvent event : allModelActions) {
-            FileUtils.copyFileToDirectory(hierarchyXmlFiles.get(event.getHierarchy()), recordDirectory);
-            FileUtils.copyFileToDirectory(screenshotFiles.get(event.getScreenshot()), recordDirectory);
-        }
+        List<MyTestRecorderEvent> allModelActions = eventLog.view(loggedEvents);
+        // Artifacts of events removed in the dialog are not worth moving
+        artifactManager.retainOnly(allModelActions);
+        // Write robo_script.json from the event log, and move hierarchy and screenshot files referenced by the events
+        // from the journal to destined directory, off the EDT as there can be thousands of them
+        ProgressManager.getInstance().runProcessWithProgressSynchronously(() -> {
+            long start = System.nanoTime();
+            // Saved with the record, within the archive if it is one
+            recordJournal.seal(recordDirectory, allModelActions, () -> {
+                recordingMetrics.recordSince(Stage.SAVE, start);
+                return getMetricsJson();
+            }, AdaptedRecorderSettings.getInstance());
+            return null;
+        }, "Saving Record", false, myProject);
     }
 
-    public String getJsonForActions(Project project, List<MyTestRecorderEvent> events) {
-        GsonBuilder gsonBuilder = new GsonBuilder();
-        gsonBuilder.registerTypeAdapter(ElementDescriptor.class, new MyElementDescriptorSerializer(project));
-        return gsonBuilder.setPrettyPrinting().create().toJson(events);
+    public String getJsonForActions(Project project, List<MyTestRecorderEvent> events) throws IOException {
+        StringWriter json = new StringWriter();
+        writeActions(project, events, json, false);
+        return json.toString();
     }
 
-    public static class MyElementDescriptorSerializer implements JsonSerializer<ElementDescriptor> {
+    /**
+     * Stream {@code events} as a robo script to {@code out}, which is closed afterwards.
+     */
+    public void writeActions(Project project, List<MyTestRecorderEvent> events, Writer out, boolean compact) throws IOException {
+        RoboScriptWriter.write(RoboScriptWriter.createGson(project), events, out, compact);
+    }
 
-        private final Project project;
+    /**
+     * Also reads element descriptors back as serialized, e.g. for {@link BinaryRoboScriptWriter}, class names stay as resolved.
+     */
+    public static class MyElementDescriptorSerializer implements JsonSerializer<ElementDescriptor>, JsonDeserializer<ElementDescriptor> {
+        private static final String CLASS_NAME = "className";
+        private static final String RECYCLER_VIEW_CHILD_POSITION = "recyclerViewChildPosition";
+        private static final String ADAPTER_VIEW_CHILD_POSITION = "adapterViewChildPosition";
+        private static final String GROUP_VIEW_CHILD_POSITION = "groupViewChildPosition";
+        private static final String RESOURCE_ID = "resourceId";
+        private static final String CONTENT_DESCRIPTION = "contentDescription";
+        private static final String TEXT = "text";
+
+        private final UnaryOperator<String> internalNames;
 
         public MyElementDescriptorSerializer(Project project) {
-            this.project = project;
+            this(InternalNameCache.getInstance(project)::getInternalName);
+        }
+
+        /**
+         * @param internalNames resolves class names, e.g. without a project
+         */
+        public MyElementDescriptorSerializer(UnaryOperator<String> internalNames) {
+            this.internalNames = internalNames;
         }
 
         @Override
         public JsonElement serialize(ElementDescriptor elementDescriptor, Type type, JsonSerializationContext jsonSerializationContext) {
             JsonObject jsonObject = new JsonObject();
-            jsonObject.addProperty("className", ClassHelper.getInternalName(project, elementDescriptor.getClassName()));
-            jsonObject.addProperty("recyclerViewChildPosition", elementDescriptor.getRecyclerViewChildPosition());
-            jsonObject.addProperty("adapterViewChildPosition", elementDescriptor.getAdapterViewChildPosition());
-            jsonObject.addProperty("groupViewChildPosition", elementDescriptor.getGroupViewChildPosition());
-            jsonObject.addProperty("resourceId", elementDescriptor.getResourceId());
-            jsonObject.addProperty("contentDescription", elementDescriptor.getContentDescription());
-            jsonObject.addProperty("text", elementDescriptor.getText());
+            jsonObject.addProperty(CLASS_NAME, internalNames.apply(elementDescriptor.getClassName()));
+            jsonObject.addProperty(RECYCLER_VIEW_CHILD_POSITION, elementDescriptor.getRecyclerViewChildPosition());
+            jsonObject.addProperty(ADAPTER_VIEW_CHILD_POSITION, elementDescriptor.getAdapterViewChildPosition());
+            jsonObject.addProperty(GROUP_VIEW_CHILD_POSITION, elementDescriptor.getGroupViewChildPosition());
+            jsonObject.addProperty(RESOURCE_ID, elementDescriptor.getResourceId());
+            jsonObject.addProperty(CONTENT_DESCRIPTION, elementDescriptor.getContentDescription());
+            jsonObject.addProperty(TEXT, elementDescriptor.getText());
             return jsonObject;
         }
+
+        @Override
+        public ElementDescriptor deserialize(JsonElement json, Type type, JsonDeserializationContext jsonDeserializationContext) {
+            JsonObject jsonObject = json.getAsJsonObject();
+            return new ElementDescriptor(getString(jsonObject, CLASS_NAME), getInt(jsonObject, RECYCLER_VIEW_CHILD_POSITION),
+                    getInt(jsonObject, ADAPTER_VIEW_CHILD_POSITION), getInt(jsonObject, GROUP_VIEW_CHILD_POSITION),
+                    getString(jsonObject, RESOURCE_ID), getString(jsonObject, CONTENT_DESCRIPTION), getString(jsonObject, TEXT));
+        }
+
+        private static String getString(JsonObject jsonObject, String property) {
+            JsonElement value = jsonObject.get(property);
+            return value == null || value.isJsonNull() ? null : value.getAsString();
+        }
+
+        private static int getInt(JsonObject jsonObject, String property) {
+            JsonElement value = jsonObject.get(property);
+            return value == null || value.isJsonNull() ? -1 : value.getAsInt();
+        }
     }
 }
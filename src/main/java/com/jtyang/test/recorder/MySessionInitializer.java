@@ -2,6 +2,7 @@ package com.jtyang.test.recorder;
 
 import com.android.SdkConstants;
 import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.Client;
 import com.android.ddmlib.CollectingOutputReceiver;
 import com.android.ddmlib.IDevice;
 import com.android.tools.idea.run.AndroidSessionInfo;
@@ -14,6 +15,7 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gct.testrecorder.debugger.BreakpointCommand;
 import com.google.gct.testrecorder.debugger.BreakpointDescriptor;
 import com.google.gct.testrecorder.debugger.SessionInitializer;
+import com.google.gct.testrecorder.event.TestRecorderEventListener;
 import com.google.gct.testrecorder.run.TestRecorderRunConfigurationProxy;
 import com.google.gct.testrecorder.settings.TestRecorderSettings;
 import com.google.gct.testrecorder.ui.RecordingDialog;
@@ -24,6 +26,7 @@ import com.intellij.debugger.engine.DebugProcessImpl;
 import com.intellij.debugger.engine.DebugProcessListener;
 import com.intellij.debugger.engine.JavaDebugProcess;
 import com.intellij.debugger.engine.RemoteDebugProcessHandler;
+import com.intellij.debugger.engine.events.DebuggerCommandImpl;
 import com.intellij.debugger.impl.DebuggerManagerListener;
 import com.intellij.debugger.impl.DebuggerSession;
 import com.intellij.execution.DefaultExecutionResult;
@@ -33,13 +36,17 @@ import com.intellij.execution.configurations.RemoteConnection;
 import com.intellij.execution.configurations.RunConfiguration;
 import com.intellij.execution.configurations.RunProfileState;
 import com.intellij.execution.runners.ExecutionEnvironment;
+import com.intellij.notification.Notification;
+import com.intellij.notification.NotificationType;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.MessageDialogBuilder;
 import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.util.Disposer;
 import com.intellij.psi.PsiClass;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.xdebugger.XDebugProcess;
 import com.intellij.xdebugger.XDebugProcessStarter;
 import com.intellij.xdebugger.XDebugSession;
@@ -53,8 +60,12 @@ import org.jetbrains.android.sdk.AndroidSdkUtils;
 import org.jetbrains.annotations.NotNull;
 
 import javax.swing.SwingUtilities;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import static com.google.gct.testrecorder.event.TestRecorderEvent.*;
@@ -67,27 +78,49 @@ import static com.google.gct.testrecorder.event.TestRecorderEvent.*;
  */
 public class MySessionInitializer extends SessionInitializer {
     private static final Logger LOGGER = Logger.getInstance(SessionInitializer.class);
+    private static final int BREAKPOINTS_READY_TIMEOUT_SECONDS = 30;
+    // How long the debug session of a device of a multi-device launch may take to show up, including the app install
+    private static final int DEVICE_SESSION_TIMEOUT_SECONDS = 120;
+    private static final int DEVICE_SESSION_RETRY_MILLIS = 500;
     // A replacement press back breakpoint descriptor as a workaround for emulators with API 28+ that cannot reliably handle,
     // i.e., without occasionally freezing, the regular PRESS_BACK breakpoint.
     private static final BreakpointDescriptor PRESS_BACK_EMULATOR_28_BREAKPOINT_DESCRIPTOR =
             new BreakpointDescriptor(PRESS_BACK_EMULATOR_28, "android.app.Activity", "onBackPressed", "()V", false);
+    // Breakpoints on Handler, hit for every message of the app rather than for user input, the only ones disabled when hot
+    private static final Set<String> THROTTLED_EVENT_TYPES = Set.of(DELAYED_MESSAGE_POST, LAZY_CLASSES_LOADER);
     private final Set<BreakpointDescriptor> myBreakpointDescriptors = Sets.newHashSet();
     private final Set<BreakpointCommand> myBreakpointCommands = Sets.newHashSet();
+    private final Map<BreakpointCommand, BreakpointStats> myBreakpointStats = new ConcurrentHashMap<>();
     private final AndroidFacet myFacet;
     private final Project myProject;
     private final ExecutionEnvironment myEnvironment;
     private final TestRecorderRunConfigurationProxy myTestRecorderConfigurationProxy;
     private final RunConfiguration myRunConfiguration;
     private final boolean myIsRecordingTest;
+    // Both null unless this initializer is one of several started by a launch on multiple devices
+    private final IDevice myAssignedDevice;
+    private final DeviceSessionGroup myDeviceGroup;
     private IDevice myDevice;
     private String myPackageName;
     private volatile DebuggerSession myDebuggerSession;
     private volatile DebuggerManagerListener myDebuggerManagerListener;
     private volatile RecordingDialog myRecordingDialog;
     private volatile boolean myFailedToStart;
+    // Initializers of the devices of a multi-device launch, which get their debug sessions through our listener
+    private volatile List<MySessionInitializer> myDeviceInitializers = List.of();
+    // Guarded by this, set once a device initializer gave up waiting for its debug session
+    private boolean myDeviceSessionTimedOut;
 
     public MySessionInitializer(AndroidFacet facet, ExecutionEnvironment environment, TestRecorderRunConfigurationProxy testRecorderConfigurationProxy, RunConfiguration runConfiguration, boolean isRecordingTest) {
+        this(facet, environment, testRecorderConfigurationProxy, runConfiguration, isRecordingTest, null, null);
+    }
+
+    private MySessionInitializer(AndroidFacet facet, ExecutionEnvironment environment, TestRecorderRunConfigurationProxy testRecorderConfigurationProxy, RunConfiguration runConfiguration, boolean isRecordingTest,
+                                 IDevice assignedDevice, DeviceSessionGroup deviceGroup) {
         super(facet, environment, testRecorderConfigurationProxy, runConfiguration, isRecordingTest);
+        myAssignedDevice = assignedDevice;
+        myDeviceGroup = deviceGroup;
+        myDevice = assignedDevice;
         myFacet = facet;
         myProject = myFacet.getModule().getProject();
         myEnvironment = environment;
@@ -127,6 +160,11 @@ public class MySessionInitializer extends SessionInitializer {
             myDebuggerManagerListener = new DebuggerManagerListener() {
                 @Override
                 public void sessionCreated(DebuggerSession session) {
+                    List<MySessionInitializer> deviceInitializers = myDeviceInitializers;
+                    if (!deviceInitializers.isEmpty()) {
+                        dispatchDeviceSession(deviceInitializers, session, System.nanoTime());
+                        return;
+                    }
                     myDebuggerSession = session;
                     myDebuggerSession.getProcess().addDebugProcessListener(createDebugProcessListener());
                 }
@@ -139,14 +177,101 @@ public class MySessionInitializer extends SessionInitializer {
                 }
             };
         }
-        DebuggerManagerEx.getInstanceEx(myProject).addDebuggerManagerListener(myDebuggerManagerListener);
+        if (myDeviceGroup == null) {
+            // Initializers of the devices of a launch get their sessions from the one that started them
+            DebuggerManagerEx.getInstanceEx(myProject).addDebuggerManagerListener(myDebuggerManagerListener);
+        }
         try {
-            assignDevice();
+            List<IDevice> devices = assignDevice();
+            if (devices.size() > 1) {
+                // Leave the devices to initializers of their own
+                DeviceSessionGroup deviceGroup = new DeviceSessionGroup(devices.size(), AdaptedRecorderSettings.getInstance());
+                List<MySessionInitializer> deviceInitializers = new ArrayList<>(devices.size());
+                for (IDevice device : devices) {
+                    MySessionInitializer deviceInitializer = new MySessionInitializer(myFacet, myEnvironment,
+                            myTestRecorderConfigurationProxy, myRunConfiguration, myIsRecordingTest, device, deviceGroup);
+                    // Known before its debug session shows up
+                    deviceInitializer.myPackageName = myPackageName;
+                    deviceInitializers.add(deviceInitializer);
+                }
+                // Our listener dispatches from now on, so no session slips through between listeners
+                myDeviceInitializers = deviceInitializers;
+                Disposer.register(deviceGroup, () -> DebuggerManagerEx.getInstanceEx(myProject).removeDebuggerManagerListener(myDebuggerManagerListener));
+                deviceInitializers.forEach(ApplicationManager.getApplication()::executeOnPooledThread);
+            } else if (myDeviceGroup != null) {
+                AppExecutorUtil.getAppScheduledExecutorService().schedule(this::giveUpWithoutSession, DEVICE_SESSION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
         } catch (final Exception e) {
             myFailedToStart = true;
             ApplicationManager.getApplication().invokeLater(() -> Messages.showErrorDialog(myProject, e.getMessage(), "Test Recorder Startup Failure"));
             stopTestRecorder();
+            if (myDeviceGroup != null) {
+                myDeviceGroup.sessionClosed();
+            }
+        }
+    }
+
+    /**
+     * Hand {@code session} to the initializer of its device. The client of the device may not be known right away,
+     * so unclaimed sessions are offered again until {@link #DEVICE_SESSION_TIMEOUT_SECONDS}.
+     */
+    private void dispatchDeviceSession(List<MySessionInitializer> deviceInitializers, DebuggerSession session, long since) {
+        for (MySessionInitializer deviceInitializer : deviceInitializers) {
+            if (deviceInitializer.claimSession(session)) {
+                return;
+            }
+        }
+        if (System.nanoTime() - since < TimeUnit.SECONDS.toNanos(DEVICE_SESSION_TIMEOUT_SECONDS)) {
+            AppExecutorUtil.getAppScheduledExecutorService().schedule(() -> dispatchDeviceSession(deviceInitializers, session, since),
+                    DEVICE_SESSION_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            LOGGER.warn("No device of the launch claimed the debug session at " + session.getProcess().getConnection().getAddress());
+        }
+    }
+
+    /**
+     * @return whether {@code session} is of the device of this initializer, which then records with it
+     */
+    private synchronized boolean claimSession(DebuggerSession session) {
+        if (myDeviceSessionTimedOut || !isSessionOfMyDevice(session)) {
+            return false;
+        }
+        myDebuggerSession = session;
+        myDebuggerSession.getProcess().addDebugProcessListener(createDebugProcessListener());
+        return true;
+    }
+
+    /**
+     * Close the session of the device of this initializer if its debug session never showed up,
+     * so that the {@link DeviceSessionGroup} is not waiting for it forever.
+     */
+    private void giveUpWithoutSession() {
+        synchronized (this) {
+            if (myDebuggerSession != null) {
+                return;
+            }
+            myDeviceSessionTimedOut = true;
         }
+        myFailedToStart = true;
+        String message = "No debug session of " + myDevice.getSerialNumber() + " showed up in " + DEVICE_SESSION_TIMEOUT_SECONDS + " seconds";
+        LOGGER.warn(message);
+        ApplicationManager.getApplication().invokeLater(() -> Messages.showErrorDialog(myProject, message, "Test Recorder Startup Failure"));
+        stopTestRecorder();
+        myDeviceGroup.sessionClosed();
+    }
+
+    /**
+     * Debug sessions of all devices of a launch are offered to every initializer,
+     * tell them apart by the port the debugger connected to, see also {@link #restartDebugging()}.
+     */
+    private boolean isSessionOfMyDevice(DebuggerSession session) {
+        Client client = myPackageName == null ? null : myDevice.getClient(myPackageName);
+        if (client == null) {
+            return false;
+        }
+        String address = session.getProcess().getConnection().getAddress();
+        String port = Integer.toString(client.getDebuggerListenPort());
+        return port.equals(address) || address != null && address.endsWith(":" + port);
     }
 
     @NotNull
@@ -173,44 +298,39 @@ public class MySessionInitializer extends SessionInitializer {
                         debugSession.setBreakpointMuted(true);
                     }
                 });
-                scheduleBreakpointCommands(myDevice);
+                long scheduledAt = System.nanoTime();
+                CompletableFuture<Void> breakpointsReady = scheduleBreakpointCommands(myDevice);
                 if (myRecordingDialog == null) { // The initial debug process, open Test Recorder dialog.
                     // Detect the launched activity name outside the dispatch thread to avoid pausing it until dumb mode is over.
                     String launchedActivityName = detectLaunchedActivityName();
-                    // TODO: Open the dialog after all breakpoints are set up (i.e., the scheduled actions are actually executed).
-                    // Also, consider waiting for the app to be ready first (e.g., such that we can take a screenshot).
-                    ApplicationManager.getApplication().invokeLater(() -> {
-                        //Show Test Recorder dialog after adding and enabling breakpoints.
-                        try {
-                            myRecordingDialog = getRecordingDialog(myFacet, myDevice, myPackageName, launchedActivityName, myIsRecordingTest);
-                        } catch (NoSuchFieldException e) {
-                            e.printStackTrace();
-                            DebuggerManagerEx.getInstanceEx(myProject).removeDebuggerManagerListener(myDebuggerManagerListener);
-                        }
-                        myRecordingDialog.setDebuggerSession(myDebuggerSession);
-                        for (BreakpointCommand breakpointCommand : myBreakpointCommands) {
-                            breakpointCommand.setEventListener(myRecordingDialog);
+                    // Open the dialog after all breakpoints are set up, so that the first user actions are not missed.
+                    // TODO: Consider waiting for the app to be ready first (e.g., such that we can take a screenshot).
+                    breakpointsReady.orTimeout(BREAKPOINTS_READY_TIMEOUT_SECONDS, TimeUnit.SECONDS).whenComplete((v, t) -> {
+                        long readyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduledAt);
+                        if (t == null) {
+                            LOGGER.info(myBreakpointCommands.size() + " breakpoints ready in " + readyMillis + " ms");
+                        } else {
+                            LOGGER.warn("Breakpoints not confirmed ready after " + readyMillis + " ms, opening Test Recorder anyway", t);
                         }
-                        myRecordingDialog.show();
-                        // The dialog is no longer modal, so wait till it is closed before stopping the recorder.
-                        // TODO: Find a way to achieve this without busy-waiting.
-                        new Thread(() -> {
-                            while (myRecordingDialog.isShowing()) {
-                                try {
-                                    Thread.sleep(1000);
-                                } catch (InterruptedException e) {
-                                    // ignore
-                                }
+                        ApplicationManager.getApplication().invokeLater(() -> {
+                            //Show Test Recorder dialog after adding and enabling breakpoints.
+                            myRecordingDialog = getRecordingDialog(myFacet, myDevice, myPackageName, launchedActivityName, myIsRecordingTest);
+                            myRecordingDialog.setDebuggerSession(myDebuggerSession);
+                            if (myRecordingDialog instanceof MyRecordingDialog) {
+                                // A live view, so breakpoints set up again on restart are saved too
+                                ((MyRecordingDialog) myRecordingDialog).setBreakpointStats(myBreakpointStats.values());
                             }
-                            stopTestRecorder();
-                        }).start();
+                            attachEventListener(myRecordingDialog);
+                            myRecordingDialog.show();
+                            // The dialog is no longer modal, so stop the recorder once it is closed.
+                            RecordingSessionLifecycle.attach(myRecordingDialog, myPackageName + " on " + myDevice.getSerialNumber(),
+                                    MySessionInitializer.this::stopTestRecorder);
+                        });
                     });
                 } else {
                     // The restarted debug process, reuse the already shown Test Recorder dialog.
                     myRecordingDialog.setDebuggerSession(myDebuggerSession);
-                    for (BreakpointCommand breakpointCommand : myBreakpointCommands) {
-                        breakpointCommand.setEventListener(myRecordingDialog);
-                    }
+                    attachEventListener(myRecordingDialog);
                 }
             }
             @Override
@@ -224,8 +344,8 @@ public class MySessionInitializer extends SessionInitializer {
     }
 
     // The adjustment 2022/1/7
-    public RecordingDialog getRecordingDialog(AndroidFacet facet, IDevice device, String packageName, String launchedActivityName, boolean isRecordingTest) throws NoSuchFieldException {
-        return new MyRecordingDialog(facet, device, packageName, launchedActivityName, isRecordingTest);
+    public RecordingDialog getRecordingDialog(AndroidFacet facet, IDevice device, String packageName, String launchedActivityName, boolean isRecordingTest) {
+        return new MyRecordingDialog(facet, device, packageName, launchedActivityName, isRecordingTest, myDeviceGroup);
     }
 
     /**
@@ -336,9 +456,14 @@ public class MySessionInitializer extends SessionInitializer {
         processHandler.startNotify();
     }
 
-    private void scheduleBreakpointCommands(IDevice device) {
+    /**
+     * @return completes once every scheduled command has run on the debugger manager thread
+     */
+    private CompletableFuture<Void> scheduleBreakpointCommands(IDevice device) {
         myBreakpointCommands.clear();
+        myBreakpointStats.clear();
         DebugProcessImpl debugProcess = myDebuggerSession.getProcess();
+        int maxHitsPerSecond = AdaptedRecorderSettings.getInstance().BREAKPOINT_MAX_HITS_PER_SECOND;
         for (BreakpointDescriptor breakpointDescriptor : myBreakpointDescriptors) {
             if (device.getVersion().getApiLevel() >= 28) {
                 if (breakpointDescriptor.eventType.equals(DELAYED_MESSAGE_POST)) {
@@ -352,11 +477,68 @@ public class MySessionInitializer extends SessionInitializer {
             }
             BreakpointCommand breakpointCommand = new BreakpointCommand(debugProcess, breakpointDescriptor);
             myBreakpointCommands.add(breakpointCommand);
+            // Other breakpoints are only counted, disabling them would silently stop recording their events
+            int breakpointMaxHits = THROTTLED_EVENT_TYPES.contains(breakpointDescriptor.eventType) ? maxHitsPerSecond : 0;
+            myBreakpointStats.put(breakpointCommand, new BreakpointStats(breakpointDescriptor, breakpointMaxHits,
+                    () -> disableHotBreakpoint(debugProcess, breakpointCommand)));
             debugProcess.getManagerThread().schedule(breakpointCommand);
         }
+        // The manager thread runs commands by priority then in order, so this one runs after all the breakpoint commands
+        CompletableFuture<Void> ready = new CompletableFuture<>();
+        debugProcess.getManagerThread().schedule(new DebuggerCommandImpl() {
+            @Override
+            public Priority getPriority() {
+                return Priority.LOWEST;
+            }
+
+            @Override
+            protected void action() {
+                ready.complete(null);
+            }
+
+            @Override
+            protected void commandCancelled() {
+                ready.cancel(false);
+            }
+        });
+        return ready;
+    }
+
+    /**
+     * Pass events of the breakpoints to {@code listener} through their {@link BreakpointStats}.
+     */
+    private void attachEventListener(TestRecorderEventListener listener) {
+        for (BreakpointCommand breakpointCommand : myBreakpointCommands) {
+            BreakpointStats stats = myBreakpointStats.get(breakpointCommand);
+            stats.setDelegate(listener);
+            breakpointCommand.setEventListener(stats);
+        }
+    }
+
+    /**
+     * Every hit suspends the app thread, so a breakpoint hit many times a second slows the app down badly.
+     * BreakpointCommand does not expose its request for narrowing with filters, so the breakpoint is disabled.
+     */
+    private void disableHotBreakpoint(DebugProcessImpl debugProcess, BreakpointCommand breakpointCommand) {
+        BreakpointStats stats = myBreakpointStats.get(breakpointCommand);
+        LOGGER.warn("Disabling hot breakpoint " + stats);
+        BreakpointDescriptor descriptor = stats.getDescriptor();
+        new Notification(CompatibilityCheckActivity.NOTIFICATION_GROUP_ID, "Breakpoint disabled",
+                descriptor.eventType + " events are no longer recorded, as " + descriptor.className + "." + descriptor.methodName
+                        + " was hit more than " + AdaptedRecorderSettings.getInstance().BREAKPOINT_MAX_HITS_PER_SECOND + " times a second",
+                NotificationType.WARNING).notify(myProject);
+        debugProcess.getManagerThread().schedule(new DebuggerCommandImpl() {
+            @Override
+            protected void action() {
+                breakpointCommand.disable();
+            }
+        });
     }
 
     private void stopTestRecorder() {
+        for (BreakpointStats stats : myBreakpointStats.values()) {
+            LOGGER.info(stats.toString());
+        }
         stopDebugger();
         if (myDevice != null && TestRecorderSettings.getInstance().CLEAN_AFTER_FINISH) {
             try {
@@ -385,24 +567,37 @@ public class MySessionInitializer extends SessionInitializer {
         }
     }
 
-    private void assignDevice() {
-        List<ListenableFuture<IDevice>> listenableFutures = myTestRecorderConfigurationProxy.getDeviceFutures(myEnvironment);
-        if (listenableFutures == null || listenableFutures.size() != 1) {
-            throw new RuntimeException("Test Recorder should be launched on a single device!");
-        }
+    /**
+     * @return devices of the launch, when there are more than one this initializer records on none of them
+     */
+    private List<IDevice> assignDevice() {
         try {
-            myDevice = listenableFutures.get(0).get();
+            myPackageName = ApkProviderUtil.computePackageName(myFacet);
         } catch (Exception e) {
-            throw new RuntimeException("Exception while waiting for the device to become ready ", e);
+            throw new RuntimeException("Could not compute package name!");
+        }
+        if (myAssignedDevice == null) {
+            List<ListenableFuture<IDevice>> listenableFutures = myTestRecorderConfigurationProxy.getDeviceFutures(myEnvironment);
+            if (listenableFutures == null || listenableFutures.isEmpty()) {
+                throw new RuntimeException("Test Recorder should be launched on at least one device!");
+            }
+            List<IDevice> devices = new ArrayList<>(listenableFutures.size());
+            for (ListenableFuture<IDevice> listenableFuture : listenableFutures) {
+                try {
+                    devices.add(listenableFuture.get());
+                } catch (Exception e) {
+                    throw new RuntimeException("Exception while waiting for the device to become ready ", e);
+                }
+            }
+            if (devices.size() > 1) {
+                return devices;
+            }
+            myDevice = devices.get(0);
         }
         if (myDevice.getVersion().getApiLevel() < 19) {
             throw new RuntimeException("Test Recorder supports devices and emulators running Android API level 19 (Android 4.4 Kit Kat) and higher.");
         }
-        try {
-            myPackageName = ApkProviderUtil.computePackageName(myFacet);
-        } catch (Exception e) {
-            throw new RuntimeException("Could not compute package name!");
-        }
+        return List.of(myDevice);
     }
 
     private void reconnectToDevice() {
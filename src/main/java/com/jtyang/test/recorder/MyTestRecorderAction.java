@@ -47,6 +47,11 @@ public class MyTestRecorderAction extends TestRecorderAction {
     public void actionPerformed(AnActionEvent event) {
         Project project = event.getProject();
         if (project != null && !project.isDisposed()) {
+            String incompatibility = TestRecorderAccessors.getIncompatibility();
+            if (incompatibility != null) {
+                Messages.showDialog(project, incompatibility, "Adapted Test Recorder Is Disabled", new String[]{"OK"}, 0, null);
+                return;
+            }
             myLaunchTestRecorder(project, isRecordingTestAction(event));
         }
     }
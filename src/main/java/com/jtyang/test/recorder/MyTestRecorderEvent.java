@@ -1,8 +1,11 @@
 package com.jtyang.test.recorder;
 
+import com.google.gct.testrecorder.event.ElementDescriptor;
 import com.google.gct.testrecorder.event.TestRecorderEvent;
 
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.UnaryOperator;
 
 /**
  * Extend {@link TestRecorderEvent} with hierarchy and screenshot.
@@ -12,6 +15,13 @@ import java.util.Optional;
 public class MyTestRecorderEvent extends TestRecorderEvent {
     private String hierarchy;
     private String screenshot;
+    // Only known for DeviceCapturer.CaptureMode.PARALLEL
+    private Long captureSkewMillis;
+    // How long after the event its result state started to be captured, null if never captured
+    private Long captureStalenessMillis;
+    // Completes once hierarchy and screenshot are settled, either captured or known to be skipped
+    private final transient CompletableFuture<MyTestRecorderEvent> capture = new CompletableFuture<>();
+    private transient int journalSequence = -1;
 
     public MyTestRecorderEvent(String eventType, long timestamp) {
         super(eventType, timestamp);
@@ -33,23 +43,69 @@ public class MyTestRecorderEvent extends TestRecorderEvent {
         this.screenshot = screenshot;
     }
 
+    public Long getCaptureSkewMillis() {
+        return captureSkewMillis;
+    }
+
+    public void setCaptureSkewMillis(Long captureSkewMillis) {
+        this.captureSkewMillis = captureSkewMillis;
+    }
+
+    public Long getCaptureStalenessMillis() {
+        return captureStalenessMillis;
+    }
+
+    public void setCaptureStalenessMillis(Long captureStalenessMillis) {
+        this.captureStalenessMillis = captureStalenessMillis;
+    }
+
+    public CompletableFuture<MyTestRecorderEvent> getCapture() {
+        return capture;
+    }
+
+    public void completeCapture() {
+        capture.complete(this);
+    }
+
+    public int getJournalSequence() {
+        return journalSequence;
+    }
+
+    public void setJournalSequence(int journalSequence) {
+        this.journalSequence = journalSequence;
+    }
+
     /**
      * get a {@link MyTestRecorderEvent} object from its superclass instance
      */
     public static MyTestRecorderEvent getMyRecorderEvent(TestRecorderEvent event) {
+        return getMyRecorderEvent(event, UnaryOperator.identity());
+    }
+
+    /**
+     * @param interner shares equal element descriptors between events, see {@link CompactEventLog#intern}
+     */
+    public static MyTestRecorderEvent getMyRecorderEvent(TestRecorderEvent event, UnaryOperator<ElementDescriptor> interner) {
         MyTestRecorderEvent myTestRecorderEvent = new MyTestRecorderEvent(event.getEventType(), event.getTimestamp());
-        myTestRecorderEvent.setActionCode(event.getActionCode());
-        myTestRecorderEvent.setCanScrollTo(event.canScrollTo());
-        myTestRecorderEvent.setReplacementText(event.getReplacementText());
-        myTestRecorderEvent.setDelayTime(event.getDelayTime());
-        Optional.ofNullable(event.getRequestedPermissions()).ifPresent(myTestRecorderEvent::setRequestedPermissions);
-        myTestRecorderEvent.setSwipeDirection(event.getSwipeDirection());
-        for (int i = 0; i < event.getElementDescriptorsCount(); i++) {
-            myTestRecorderEvent.addElementDescriptor(event.getElementDescriptor(i));
-        }
+        copyFields(event, myTestRecorderEvent, interner);
         return myTestRecorderEvent;
     }
 
+    /**
+     * Copy what {@link TestRecorderEvent} has besides event type and timestamp from {@code from} to {@code to}.
+     */
+    static void copyFields(TestRecorderEvent from, TestRecorderEvent to, UnaryOperator<ElementDescriptor> interner) {
+        to.setActionCode(from.getActionCode());
+        to.setCanScrollTo(from.canScrollTo());
+        to.setReplacementText(from.getReplacementText());
+        to.setDelayTime(from.getDelayTime());
+        Optional.ofNullable(from.getRequestedPermissions()).ifPresent(to::setRequestedPermissions);
+        to.setSwipeDirection(from.getSwipeDirection());
+        for (int i = 0; i < from.getElementDescriptorsCount(); i++) {
+            to.addElementDescriptor(interner.apply(from.getElementDescriptor(i)));
+        }
+    }
+
     public static class DummyTestRecordEvent extends MyTestRecorderEvent {
 
         public DummyTestRecordEvent(String dummyEventType) {
@@ -5,9 +5,6 @@ import com.google.gct.testrecorder.ui.ScreenshotCallback;
 import com.google.gct.testrecorder.ui.TestRecorderScreenshotTask;
 import com.intellij.openapi.project.Project;
 
-import java.io.File;
-import java.lang.reflect.Field;
-
 /**
  * Work with {@link UiAutomatorModelStub} to enable access to XML dump file
  *
@@ -23,17 +20,8 @@ public class MyTestRecorderScreenshotTask extends TestRecorderScreenshotTask {
 
     @Override
     public void onSuccess() {
-        try {
-            Class<?> superclass = getClass().getSuperclass();
-            Field success = superclass.getDeclaredField("success");
-            success.setAccessible(true);
-            Field myUiHierarchyLocalFile = superclass.getDeclaredField("myUiHierarchyLocalFile");
-            myUiHierarchyLocalFile.setAccessible(true);
-            if (success.getBoolean(this)) {
-                callback.onSuccess(getScreenshot(), new UiAutomatorModelStub(((File) myUiHierarchyLocalFile.get(this))));
-            }
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            e.printStackTrace();
+        if (TestRecorderAccessors.isSuccess(this)) {
+            callback.onSuccess(getScreenshot(), new UiAutomatorModelStub(TestRecorderAccessors.getUiHierarchyLocalFile(this)));
         }
     }
 }
@@ -0,0 +1,120 @@
+package com.jtyang.test.recorder;
+
+import com.android.ddmlib.RawImage;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * Screenshot as packed ARGB pixels, decoded straight from the frame buffer of a {@link RawImage},
+ * so that it can be hashed, rotated and encoded without going through an intermediate image format.
+ *
+ * @author jtyang
+ */
+public class RawFrame {
+    private static final DirectColorModel ARGB = new DirectColorModel(32, 0x00ff0000, 0x0000ff00, 0x000000ff, 0xff000000);
+
+    private final int[] pixels;
+    private final int width;
+    private final int height;
+
+    public RawFrame(int[] pixels, int width, int height) {
+        if (pixels.length != width * height) {
+            throw new IllegalArgumentException(pixels.length + " pixels for a " + width + "x" + height + " frame");
+        }
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+    }
+
+    public static RawFrame fromRawImage(RawImage rawImage) {
+        int[] pixels = new int[rawImage.width * rawImage.height];
+        if (rawImage.bpp == 32) {
+            // Channel offsets and lengths are those of a little-endian 32-bit word, see RawImage#getARGB
+            byte[] data = rawImage.data;
+            int redShift = rawImage.red_offset, redMask = mask(rawImage.red_length);
+            int greenShift = rawImage.green_offset, greenMask = mask(rawImage.green_length);
+            int blueShift = rawImage.blue_offset, blueMask = mask(rawImage.blue_length);
+            int alphaShift = rawImage.alpha_offset, alphaMask = mask(rawImage.alpha_length);
+            boolean opaque = rawImage.alpha_length == 0;
+            for (int i = 0, index = 0; i < pixels.length; i++, index += 4) {
+                int value = (data[index] & 0xff) | (data[index + 1] & 0xff) << 8 | (data[index + 2] & 0xff) << 16 | (data[index + 3] & 0xff) << 24;
+                int r = scale((value >>> redShift) & redMask, rawImage.red_length);
+                int g = scale((value >>> greenShift) & greenMask, rawImage.green_length);
+                int b = scale((value >>> blueShift) & blueMask, rawImage.blue_length);
+                int a = opaque ? 0xff : scale((value >>> alphaShift) & alphaMask, rawImage.alpha_length);
+                pixels[i] = a << 24 | r << 16 | g << 8 | b;
+            }
+        } else {
+            // 16 bpp frame buffers of old devices, rare enough to not bother
+            int step = rawImage.bpp >> 3;
+            for (int i = 0, index = 0; i < pixels.length; i++, index += step) {
+                pixels[i] = rawImage.getARGB(index);
+            }
+        }
+        return new RawFrame(pixels, rawImage.width, rawImage.height);
+    }
+
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Rotate counter-clockwise by {@code quarterTurns} quarter turns, the same direction as {@link RawImage#getRotated()},
+     * by copying pixels to their rotated indices.
+     */
+    public RawFrame rotate(int quarterTurns) {
+        int turns = Math.floorMod(quarterTurns, 4);
+        if (turns == 0) {
+            return this;
+        }
+        int[] rotated = new int[pixels.length];
+        int rotatedWidth = turns == 2 ? width : height;
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                int index;
+                if (turns == 1) {
+                    index = (width - 1 - x) * rotatedWidth + y;
+                } else if (turns == 2) {
+                    index = (height - 1 - y) * rotatedWidth + (width - 1 - x);
+                } else {
+                    index = x * rotatedWidth + (height - 1 - y);
+                }
+                rotated[index] = pixels[row + x];
+            }
+        }
+        return turns == 2 ? new RawFrame(rotated, width, height) : new RawFrame(rotated, height, width);
+    }
+
+    /**
+     * @return an ARGB image backed by the pixels of this frame, not a copy of them
+     */
+    public BufferedImage toImage() {
+        DataBufferInt buffer = new DataBufferInt(pixels, pixels.length);
+        WritableRaster raster = Raster.createPackedRaster(buffer, width, height, width, ARGB.getMasks(), null);
+        return new BufferedImage(ARGB, raster, false, null);
+    }
+
+    private static int mask(int length) {
+        return length >= 32 ? -1 : (1 << length) - 1;
+    }
+
+    private static int scale(int value, int length) {
+        if (length >= 8) {
+            return (value >>> (length - 8)) & 0xff;
+        }
+        return length == 0 ? 0 : value * 0xff / mask(length);
+    }
+}
@@ -0,0 +1,147 @@
+package com.jtyang.test.recorder;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A record as a single zip file, streamed entry by entry rather than laid out as a directory first.
+ * <p>
+ * Text entries (the robo script, hierarchy dumps) are deflated at the strongest level. Images are already compressed,
+ * so they are deflated at level 0, which wraps them in uncompressed blocks. Unlike stored entries, these need no CRC
+ * up front, so every file is read once. The last entry, {@code index.json}, lists for each event of the robo script,
+ * in the same order, the entries of its hierarchy and screenshot, so that {@link RecordArchiveReader} can read
+ * the artifacts of one event through the zip central directory without unpacking the rest.
+ *
+ * @author jtyang
+ */
+public class RecordArchive implements Closeable {
+    public static final String FILENAME = "record.zip";
+    public static final String INDEX_FILENAME = "index.json";
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of("png", "jpg", "jpeg", "webp");
+
+    private final ZipOutputStream out;
+    private final Set<String> entryNames = new HashSet<>();
+    private final JsonArray events = new JsonArray();
+    private String hierarchyDeltas;
+
+    public RecordArchive(File file) throws IOException {
+        out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(file.toPath()), 1 << 16));
+    }
+
+    /**
+     * Start a deflated entry, written until the returned stream is closed. The archive stays open.
+     */
+    public OutputStream newEntry(String name) throws IOException {
+        return newEntry(name, Deflater.BEST_COMPRESSION);
+    }
+
+    private OutputStream newEntry(String name, int level) throws IOException {
+        out.setMethod(ZipEntry.DEFLATED);
+        out.setLevel(level);
+        putEntry(new ZipEntry(name));
+        return new EntryOutputStream(out);
+    }
+
+    /**
+     * Add {@code file} under its own name, once however many events reference it.
+     *
+     * @return false if it is missing
+     */
+    public boolean addArtifact(File file) throws IOException {
+        if (entryNames.contains(file.getName())) {
+            return true;
+        }
+        if (!file.isFile()) {
+            return false;
+        }
+        String extension = file.getName().substring(file.getName().lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+        int level = COMPRESSED_EXTENSIONS.contains(extension) ? Deflater.NO_COMPRESSION : Deflater.BEST_COMPRESSION;
+        try (OutputStream entry = newEntry(file.getName(), level)) {
+            Files.copy(file.toPath(), entry);
+        }
+        return true;
+    }
+
+    /**
+     * Index the artifacts of the next event of the robo script, null for none.
+     */
+    public void indexEvent(String hierarchy, String screenshot) {
+        JsonObject event = new JsonObject();
+        event.addProperty("hierarchy", hierarchy);
+        event.addProperty("screenshot", screenshot);
+        events.add(event);
+    }
+
+    /**
+     * @param name entry of the {@link HierarchyDeltaWriter} file, in which case hierarchies of events are names within it
+     */
+    public void setHierarchyDeltas(String name) {
+        hierarchyDeltas = name;
+    }
+
+    /**
+     * Write the index and the central directory.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            JsonObject index = new JsonObject();
+            index.addProperty("script", RecordJournal.ROBO_SCRIPT_FILENAME);
+            index.addProperty("hierarchyDeltas", hierarchyDeltas);
+            index.add("events", events);
+            Gson gson = new GsonBuilder().serializeNulls().create();
+            try (Writer writer = new OutputStreamWriter(newEntry(INDEX_FILENAME), UTF_8)) {
+                gson.toJson(index, writer);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void putEntry(ZipEntry entry) throws IOException {
+        entryNames.add(entry.getName());
+        out.putNextEntry(entry);
+    }
+
+    /**
+     * Closes the entry rather than the archive.
+     */
+    private static class EntryOutputStream extends FilterOutputStream {
+        private final ZipOutputStream zip;
+
+        private EntryOutputStream(ZipOutputStream zip) {
+            super(zip);
+            this.zip = zip;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            zip.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            zip.closeEntry();
+        }
+    }
+}
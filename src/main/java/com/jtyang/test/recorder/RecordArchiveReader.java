@@ -0,0 +1,96 @@
+package com.jtyang.test.recorder;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Random access to the artifacts of the events of a {@link RecordArchive}.
+ * <p>
+ * Opening reads the central directory and the index only, entries are inflated when opened.
+ *
+ * @author jtyang
+ */
+public class RecordArchiveReader implements Closeable {
+    private final ZipFile zipFile;
+    private final JsonArray events;
+    private final String hierarchyDeltas;
+
+    public RecordArchiveReader(File file) throws IOException {
+        zipFile = new ZipFile(file);
+        ZipEntry indexEntry = zipFile.getEntry(RecordArchive.INDEX_FILENAME);
+        if (indexEntry == null) {
+            zipFile.close();
+            throw new IOException(file + " is not a record archive");
+        }
+        JsonObject index;
+        try (Reader reader = new InputStreamReader(zipFile.getInputStream(indexEntry), UTF_8)) {
+            index = JsonParser.parseReader(reader).getAsJsonObject();
+        }
+        events = index.getAsJsonArray("events");
+        hierarchyDeltas = getName(index, "hierarchyDeltas");
+    }
+
+    /**
+     * @return number of events of the robo script
+     */
+    public int getEventCount() {
+        return events.size();
+    }
+
+    /**
+     * @return the robo script, to be closed by the caller
+     */
+    public InputStream openScript() throws IOException {
+        return open(RecordJournal.ROBO_SCRIPT_FILENAME);
+    }
+
+    /**
+     * @return name of the hierarchy of the {@code event}-th event, null if none. Within {@link #getHierarchyDeltas()}
+     * if hierarchies are delta-encoded, otherwise an entry
+     */
+    public String getHierarchy(int event) {
+        return getName(events.get(event).getAsJsonObject(), "hierarchy");
+    }
+
+    public String getScreenshot(int event) {
+        return getName(events.get(event).getAsJsonObject(), "screenshot");
+    }
+
+    /**
+     * @return entry of the {@link HierarchyDeltaWriter} file, null if hierarchies are plain entries
+     */
+    public String getHierarchyDeltas() {
+        return hierarchyDeltas;
+    }
+
+    /**
+     * @return the entry {@code name}, to be closed by the caller, null if not in the archive
+     */
+    public InputStream open(String name) throws IOException {
+        ZipEntry entry = name == null ? null : zipFile.getEntry(name);
+        return entry == null ? null : zipFile.getInputStream(entry);
+    }
+
+    @Override
+    public void close() throws IOException {
+        zipFile.close();
+    }
+
+    private static String getName(JsonObject json, String field) {
+        JsonElement name = json.get(field);
+        return name == null || name.isJsonNull() ? null : name.getAsString();
+    }
+}
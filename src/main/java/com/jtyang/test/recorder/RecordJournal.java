@@ -0,0 +1,421 @@
+package com.jtyang.test.recorder;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.jtyang.test.recorder.RecordingMetrics.Stage;
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Append-only write-ahead journal of a recording session, so that a session survives the IDE or the device dying.
+ * <p>
+ * A journal is a directory holding {@code journal.jsonl}, one {@code {"seq": n, "event": {...}}} line per event
+ * appended in event order once the event got its hierarchy and screenshot, and {@code artifacts/} where captures
+ * are staged from the start. {@link #seal} turns it into the final record, {@link #recover} does the same
+ * for the journal of a session that did not finish.
+ *
+ * @author jtyang
+ */
+public class RecordJournal {
+    private static final Logger LOGGER = Logger.getInstance(RecordJournal.class);
+    public static final String JOURNAL_FILENAME = "journal.jsonl";
+    public static final String ARTIFACTS_DIRECTORY_NAME = "artifacts";
+    public static final String ROBO_SCRIPT_FILENAME = "robo_script.json";
+
+    public enum OutputFormat {
+        /**
+         * {@code robo_script.json} next to a file per artifact
+         */
+        DIRECTORY,
+        /**
+         * A single {@link RecordArchive}
+         */
+        ZIP
+    }
+
+    private final File directory;
+    private final File artifactsDirectory;
+    private final Gson gson;
+    private final ExecutorService executor;
+    private final RecordingMetrics metrics;
+    private Writer writer;
+    private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+    private int nextSequence;
+
+    private RecordJournal(File directory, Project project, RecordingMetrics metrics) {
+        this.directory = directory;
+        this.metrics = metrics;
+        this.artifactsDirectory = new File(directory, ARTIFACTS_DIRECTORY_NAME);
+        this.gson = RoboScriptWriter.createGson(project);
+        this.executor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Adapted Test Recorder Journal", 1);
+    }
+
+    /**
+     * Where journals of unfinished sessions can be found.
+     */
+    public static File getJournalsDirectory() {
+        return new File(PathManager.getSystemPath(), "adapted-test-recorder" + File.separator + "journals");
+    }
+
+    /**
+     * @param metrics records journal write times and bytes, null if not needed
+     */
+    public static RecordJournal create(Project project, String sessionName, RecordingMetrics metrics) throws IOException {
+        File directory = new File(getJournalsDirectory(), sessionName);
+        try {
+            Files.createDirectories(new File(directory, ARTIFACTS_DIRECTORY_NAME).toPath());
+        } catch (IOException e) {
+            LOGGER.warn("Could not create journal under " + getJournalsDirectory() + ", using a temp directory", e);
+            directory = Files.createTempDirectory(sessionName).toFile();
+            Files.createDirectories(new File(directory, ARTIFACTS_DIRECTORY_NAME).toPath());
+        }
+        RecordJournal journal = new RecordJournal(directory, project, metrics);
+        journal.writer = Files.newBufferedWriter(new File(directory, JOURNAL_FILENAME).toPath(), UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+        return journal;
+    }
+
+    /**
+     * Rebuild a record from a (possibly partial) journal: a truncated last line is skipped,
+     * and events whose artifacts are missing keep their references, unless saved as a zip archive,
+     * whose script names the same artifacts as its index.
+     */
+    public static void recover(File journalDirectory, File recordDirectory, AdaptedRecorderSettings settings) throws IOException {
+        if (!new File(journalDirectory, JOURNAL_FILENAME).isFile()) {
+            throw new IOException(journalDirectory + " is not a record journal");
+        }
+        new RecordJournal(journalDirectory, null, null).seal(recordDirectory, sequence -> true, settings);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public File getArtifactsDirectory() {
+        return artifactsDirectory;
+    }
+
+    /**
+     * Move a capture into the artifacts directory.
+     *
+     * @return the moved file, or the original one if it cannot be moved
+     */
+    public File adopt(File artifact) {
+        File adopted = new File(artifactsDirectory, artifact.getName());
+        try {
+            Files.move(artifact.toPath(), adopted.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return adopted;
+        } catch (IOException e) {
+            LOGGER.warn("Could not move " + artifact + " into the journal", e);
+            return artifact;
+        }
+    }
+
+    /**
+     * Journal {@code event} once {@link MyTestRecorderEvent#getCapture()} completes, after all previously appended events.
+     */
+    public synchronized void append(MyTestRecorderEvent event) {
+        int sequence = nextSequence++;
+        event.setJournalSequence(sequence);
+        tail = tail.thenCompose(v -> event.getCapture().handle((e, t) -> event))
+                .thenAcceptAsync(e -> writeLine(sequence, e), executor)
+                .exceptionally(t -> {
+                    LOGGER.warn("Could not journal event " + sequence, t);
+                    return null;
+                });
+    }
+
+    /**
+     * Wait until every appended event is written.
+     *
+     * @return false if timed out
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        CompletableFuture<Void> current;
+        synchronized (this) {
+            current = tail;
+        }
+        try {
+            current.get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Turn the journal into the record in {@code recordDirectory}, then delete the journal.
+     * Events still pending are not waited for, call {@link #awaitIdle} first.
+     *
+     * @param retained journal sequences of the events to keep
+     * @param settings decides the script format, how hierarchies are saved
+     *                 and how artifacts are moved out of the journal
+     */
+    public void seal(File recordDirectory, IntPredicate retained, AdaptedRecorderSettings settings) throws IOException {
+        closeWriter();
+        seal(recordDirectory, readEvents(retained), event -> event, event -> getName(event, "hierarchy"), event -> getName(event, "screenshot"),
+                null, settings);
+    }
+
+    /**
+     * Like {@link #seal(File, IntPredicate, AdaptedRecorderSettings)}, but the script is written from {@code events}
+     * rather than read back from the journal, whose artifacts they must reference.
+     * {@code events} are only iterated, so they may be a view materializing them one at a time.
+     *
+     * @param metrics {@link RecordingMetrics#FILENAME} of the record, asked for once the artifacts are saved, null for none
+     */
+    public void seal(File recordDirectory, List<? extends MyTestRecorderEvent> events, Supplier<JsonObject> metrics,
+                     AdaptedRecorderSettings settings) throws IOException {
+        closeWriter();
+        seal(recordDirectory, events, event -> gson.toJsonTree(event).getAsJsonObject(), MyTestRecorderEvent::getHierarchy,
+                MyTestRecorderEvent::getScreenshot, metrics, settings);
+    }
+
+    /**
+     * @param serializer serializes an event the way {@link #writeLine} does
+     */
+    private <T> void seal(File recordDirectory, List<T> events, Function<? super T, JsonObject> serializer,
+                          Function<? super T, String> hierarchyOf, Function<? super T, String> screenshotOf,
+                          Supplier<JsonObject> metrics, AdaptedRecorderSettings settings) throws IOException {
+        Files.createDirectories(recordDirectory.toPath());
+        if (settings.RECORD_OUTPUT_FORMAT == OutputFormat.ZIP) {
+            // The script must name the same artifacts as the index, which leaves out missing ones
+            Set<String> missing = findMissingArtifacts(events, hierarchyOf, screenshotOf);
+            Function<? super T, JsonObject> archivedSerializer = missing.isEmpty() ? serializer
+                    : event -> withoutArtifacts(serializer.apply(event), missing);
+            try (RecordArchive archive = new RecordArchive(new File(recordDirectory, RecordArchive.FILENAME))) {
+                File binaryScript = settings.WRITE_BINARY_ROBO_SCRIPT ? new File(artifactsDirectory, BinaryRoboScriptWriter.FILENAME) : null;
+                writeScript(new OutputStreamWriter(archive.newEntry(ROBO_SCRIPT_FILENAME), UTF_8), binaryScript, events, archivedSerializer, settings);
+                if (binaryScript != null) {
+                    archive.addArtifact(binaryScript);
+                }
+                archiveArtifacts(archive, events, hierarchyOf, screenshotOf, settings.HIERARCHY_KEYFRAME_INTERVAL);
+                if (metrics != null) {
+                    RecordingMetrics.write(metrics.get(), new OutputStreamWriter(archive.newEntry(RecordingMetrics.FILENAME), UTF_8));
+                }
+            }
+            delete();
+            return;
+        }
+        writeScript(Files.newBufferedWriter(new File(recordDirectory, ROBO_SCRIPT_FILENAME).toPath(), UTF_8),
+                settings.WRITE_BINARY_ROBO_SCRIPT ? new File(recordDirectory, BinaryRoboScriptWriter.FILENAME) : null, events, serializer, settings);
+        int hierarchyKeyframeInterval = settings.HIERARCHY_KEYFRAME_INTERVAL;
+        Set<String> hierarchies = new HashSet<>();
+        Set<String> screenshots = new HashSet<>();
+        // In event order, for the delta chain
+        List<String> hierarchyOrder = new ArrayList<>();
+        for (T event : events) {
+            String hierarchy = hierarchyOf.apply(event);
+            if (hierarchy != null) {
+                hierarchies.add(hierarchy);
+                hierarchyOrder.add(hierarchy);
+            }
+            String screenshot = screenshotOf.apply(event);
+            if (screenshot != null) {
+                screenshots.add(screenshot);
+            }
+        }
+        if (hierarchyKeyframeInterval > 0) {
+            try (HierarchyDeltaWriter deltaWriter = new HierarchyDeltaWriter(new File(recordDirectory, HierarchyDeltaWriter.FILENAME), hierarchyKeyframeInterval)) {
+                for (String name : hierarchyOrder) {
+                    // Coalesced events share a dump, which is written once
+                    if (hierarchies.remove(name) && new File(artifactsDirectory, name).isFile()) {
+                        deltaWriter.append(new File(artifactsDirectory, name));
+                    }
+                }
+            }
+            hierarchies.clear();
+        }
+        Set<String> artifacts = new TreeSet<>(hierarchies);
+        artifacts.addAll(screenshots);
+        ArtifactFinalizer.fromSettings(settings).finalizeArtifacts(artifactsDirectory, artifacts, recordDirectory);
+        if (metrics != null) {
+            RecordingMetrics.write(metrics.get(), new File(recordDirectory, RecordingMetrics.FILENAME));
+        }
+        delete();
+    }
+
+    /**
+     * @return names of the artifacts {@code events} reference that are not in the journal
+     */
+    private <T> Set<String> findMissingArtifacts(List<T> events, Function<? super T, String> hierarchyOf,
+                                                 Function<? super T, String> screenshotOf) {
+        Set<String> missing = new HashSet<>();
+        for (T event : events) {
+            for (String name : new String[]{hierarchyOf.apply(event), screenshotOf.apply(event)}) {
+                if (name != null && !new File(artifactsDirectory, name).isFile()) {
+                    missing.add(name);
+                }
+            }
+        }
+        return missing;
+    }
+
+    private static JsonObject withoutArtifacts(JsonObject event, Set<String> missing) {
+        for (String property : new String[]{"hierarchy", "screenshot"}) {
+            String name = getName(event, property);
+            if (name != null && missing.contains(name)) {
+                event.remove(property);
+            }
+        }
+        return event;
+    }
+
+    /**
+     * @param binaryScript where to write the script in binary as well, null if not needed
+     */
+    private static <T> void writeScript(Writer out, File binaryScript, List<T> events, Function<? super T, JsonObject> serializer,
+                                        AdaptedRecorderSettings settings) throws IOException {
+        // Events are already serialized, no need to resolve class names again
+        try (RoboScriptWriter scriptWriter = new RoboScriptWriter(out, RoboScriptWriter.createGson((Project) null), settings.ROBO_SCRIPT_COMPACT);
+             BinaryRoboScriptWriter binaryWriter = binaryScript == null ? null : new BinaryRoboScriptWriter(binaryScript)) {
+            for (T event : events) {
+                JsonObject json = serializer.apply(event);
+                scriptWriter.append(json);
+                if (binaryWriter != null) {
+                    binaryWriter.append(json);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the artifacts of {@code events} to {@code archive} in event order, indexing each event.
+     * Missing artifacts are indexed as none.
+     */
+    private <T> void archiveArtifacts(RecordArchive archive, List<T> events, Function<? super T, String> hierarchyOf,
+                                      Function<? super T, String> screenshotOf, int hierarchyKeyframeInterval) throws IOException {
+        File deltaFile = new File(artifactsDirectory, HierarchyDeltaWriter.FILENAME);
+        Set<String> deltaHierarchies = new HashSet<>();
+        try (HierarchyDeltaWriter deltaWriter = hierarchyKeyframeInterval > 0 ? new HierarchyDeltaWriter(deltaFile, hierarchyKeyframeInterval) : null) {
+            for (T event : events) {
+                String hierarchy = hierarchyOf.apply(event);
+                File hierarchyFile = hierarchy == null ? null : new File(artifactsDirectory, hierarchy);
+                if (hierarchyFile != null && !hierarchyFile.isFile() && !deltaHierarchies.contains(hierarchy)) {
+                    LOGGER.warn("Artifact " + hierarchy + " is missing from " + artifactsDirectory);
+                    hierarchy = null;
+                } else if (hierarchyFile != null && deltaWriter != null) {
+                    // Coalesced events share a dump, which is written once
+                    if (deltaHierarchies.add(hierarchy)) {
+                        deltaWriter.append(hierarchyFile);
+                    }
+                } else if (hierarchyFile != null) {
+                    archive.addArtifact(hierarchyFile);
+                }
+                String screenshot = screenshotOf.apply(event);
+                if (screenshot != null && !archive.addArtifact(new File(artifactsDirectory, screenshot))) {
+                    LOGGER.warn("Artifact " + screenshot + " is missing from " + artifactsDirectory);
+                    screenshot = null;
+                }
+                archive.indexEvent(hierarchy, screenshot);
+            }
+        }
+        if (hierarchyKeyframeInterval > 0) {
+            archive.addArtifact(deltaFile);
+            archive.setHierarchyDeltas(deltaFile.getName());
+        }
+    }
+
+    /**
+     * Discard the journal and its artifacts.
+     */
+    public void delete() {
+        closeWriter();
+        FileUtils.deleteQuietly(directory);
+    }
+
+    private void writeLine(int sequence, MyTestRecorderEvent event) {
+        long start = System.nanoTime();
+        try {
+            JsonObject line = new JsonObject();
+            line.addProperty("seq", sequence);
+            // Class names of element descriptors are resolved through InternalNameCache, which takes care of read actions
+            line.add("event", gson.toJsonTree(event));
+            synchronized (this) {
+                if (writer == null) {
+                    return;
+                }
+                String json = gson.toJson(line);
+                writer.write(json);
+                writer.write('\n');
+                writer.flush();
+                if (metrics != null) {
+                    metrics.recordSince(Stage.PERSIST, start);
+                    metrics.addBytesWritten(json.length() + 1);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Could not journal event " + sequence, e);
+        }
+    }
+
+    private List<JsonObject> readEvents(IntPredicate retained) throws IOException {
+        List<JsonObject> events = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(new File(directory, JOURNAL_FILENAME).toPath(), UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    JsonObject entry = JsonParser.parseString(line).getAsJsonObject();
+                    if (retained.test(entry.get("seq").getAsInt())) {
+                        events.add(entry.getAsJsonObject("event"));
+                    }
+                } catch (JsonParseException | IllegalStateException e) {
+                    // Only the last line may be cut off by a crash
+                    LOGGER.warn("Skipping malformed journal line: " + line, e);
+                }
+            }
+        }
+        return events;
+    }
+
+    private synchronized void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                LOGGER.warn("Could not close journal", e);
+            }
+            writer = null;
+        }
+    }
+
+    private static String getName(JsonObject event, String field) {
+        JsonElement name = event.get(field);
+        return name == null || name.isJsonNull() ? null : name.getAsString();
+    }
+}
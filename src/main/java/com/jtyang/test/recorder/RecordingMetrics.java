@@ -0,0 +1,167 @@
+package com.jtyang.test.recorder;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Where the time of a recording session goes, stage by stage from the breakpoint hit to the saved record,
+ * plus how many bytes it wrote and pulled from the device. Shown live by {@link MyRecordingDialog} and saved next to the robo script.
+ * <p>
+ * Counts kept elsewhere (e.g. by {@link CapturePipeline}) are added in by {@link #toJson} callers.
+ *
+ * @author jtyang
+ */
+public class RecordingMetrics {
+    public static final String FILENAME = "metrics.json";
+
+    public enum Stage {
+        /**
+         * From the breakpoint hit to the event reaching the dialog
+         */
+        DISPATCH,
+        /**
+         * From the event to the start of the capture of its result state, see {@link MyTestRecorderEvent#getCaptureStalenessMillis()}
+         */
+        STALENESS,
+        /**
+         * Taking the screenshot and dumping the hierarchy on the device, including the screenshot transfer
+         */
+        CAPTURE,
+        /**
+         * Pulling the hierarchy dump
+         */
+        PULL,
+        /**
+         * Unpacking the frame buffer into pixels
+         */
+        DECODE,
+        ROTATE,
+        ENCODE,
+        /**
+         * Writing an event to the journal
+         */
+        PERSIST,
+        /**
+         * Sealing the journal into the record
+         */
+        SAVE
+    }
+
+    private final Map<Stage, LatencyHistogram> histograms = new EnumMap<>(Stage.class);
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder bytesPulled = new LongAdder();
+    private final LongAdder reusedCaptures = new LongAdder();
+
+    public RecordingMetrics() {
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new LatencyHistogram());
+        }
+    }
+
+    public void record(Stage stage, long nanos) {
+        histograms.get(stage).record(nanos);
+    }
+
+    /**
+     * Record the time since {@code startNanos}, a {@link System#nanoTime()}.
+     */
+    public void recordSince(Stage stage, long startNanos) {
+        record(stage, System.nanoTime() - startNanos);
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms.get(stage);
+    }
+
+    public void addBytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * Count bytes transferred from the device by adb pull, e.g. hierarchy dumps.
+     */
+    public void addBytesPulled(long bytes) {
+        bytesPulled.add(bytes);
+    }
+
+    public long getBytesPulled() {
+        return bytesPulled.sum();
+    }
+
+    /**
+     * Count a capture skipped because the device did not change.
+     */
+    public void addReusedCapture() {
+        reusedCaptures.increment();
+    }
+
+    public long getReusedCaptures() {
+        return reusedCaptures.sum();
+    }
+
+    /**
+     * One line for the recording dialog.
+     */
+    public String getSummary() {
+        LatencyHistogram capture = histograms.get(Stage.CAPTURE);
+        return String.format("%d captures, %d reused | capture p50 %.0fms p90 %.0fms | encode p50 %.0fms | staleness p90 %.0fms | %.1f MB written",
+                capture.getCount(), getReusedCaptures(), capture.getPercentileMillis(50), capture.getPercentileMillis(90),
+                histograms.get(Stage.ENCODE).getPercentileMillis(50), histograms.get(Stage.STALENESS).getPercentileMillis(90),
+                getBytesWritten() / (1024.0 * 1024.0));
+    }
+
+    public JsonObject toJson() {
+        JsonObject stages = new JsonObject();
+        histograms.forEach((stage, histogram) -> {
+            JsonObject json = new JsonObject();
+            json.addProperty("count", histogram.getCount());
+            json.addProperty("totalMillis", histogram.getTotalMillis());
+            json.addProperty("p50Millis", histogram.getPercentileMillis(50));
+            json.addProperty("p90Millis", histogram.getPercentileMillis(90));
+            json.addProperty("p99Millis", histogram.getPercentileMillis(99));
+            stages.add(stage.name().toLowerCase(Locale.ROOT), json);
+        });
+        JsonObject json = new JsonObject();
+        json.add("stages", stages);
+        json.addProperty("bytesWritten", getBytesWritten());
+        json.addProperty("bytesPulled", getBytesPulled());
+        json.addProperty("reusedCaptures", getReusedCaptures());
+        return json;
+    }
+
+    public static void write(JsonObject metrics, File file) throws IOException {
+        write(metrics, Files.newBufferedWriter(file.toPath(), UTF_8));
+    }
+
+    /**
+     * Write {@code metrics} to {@code out}, which is closed afterwards.
+     */
+    public static void write(JsonObject metrics, Writer out) throws IOException {
+        try (Writer writer = out) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(metrics, writer);
+        }
+    }
+
+    /**
+     * @return {@code timestampMillis} of a wall clock event as nanoseconds elapsed until now, 0 if in the future
+     */
+    public static long nanosSince(long timestampMillis) {
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(0, System.currentTimeMillis() - timestampMillis));
+    }
+}
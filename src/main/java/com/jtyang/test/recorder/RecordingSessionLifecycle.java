@@ -0,0 +1,75 @@
+package com.jtyang.test.recorder;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.ui.DialogWrapper;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.util.concurrency.AppExecutorUtil;
+
+import java.awt.Window;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tears a recording session down as soon as its dialog goes away, either disposed or closed,
+ * on a pooled thread since stopping the debugger and clearing the app talk to the device.
+ *
+ * @author jtyang
+ */
+public class RecordingSessionLifecycle {
+    private static final Logger LOGGER = Logger.getInstance(RecordingSessionLifecycle.class);
+
+    private final String sessionName;
+    private final Runnable teardown;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private RecordingSessionLifecycle(String sessionName, Runnable teardown) {
+        this.sessionName = sessionName;
+        this.teardown = teardown;
+    }
+
+    /**
+     * Run {@code teardown} once after {@code dialog} is closed. Call after the dialog is shown,
+     * as its window may not exist before.
+     */
+    public static RecordingSessionLifecycle attach(DialogWrapper dialog, String sessionName, Runnable teardown) {
+        RecordingSessionLifecycle lifecycle = new RecordingSessionLifecycle(sessionName, teardown);
+        // Closed before we got here, registering with a disposed parent would fail
+        if (dialog.isDisposed()) {
+            lifecycle.onClosed();
+            return lifecycle;
+        }
+        Disposer.register(dialog.getDisposable(), lifecycle::onClosed);
+        Window window = dialog.getWindow();
+        if (window != null) {
+            window.addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowClosed(WindowEvent e) {
+                    lifecycle.onClosed();
+                }
+            });
+        }
+        return lifecycle;
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    private void onClosed() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        long closedAt = System.nanoTime();
+        AppExecutorUtil.getAppExecutorService().execute(() -> {
+            try {
+                teardown.run();
+            } catch (Throwable t) {
+                LOGGER.warn("Teardown of " + sessionName + " failed", t);
+            } finally {
+                LOGGER.info("Teardown of " + sessionName + " took " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - closedAt) + " ms");
+            }
+        });
+    }
+}
@@ -0,0 +1,55 @@
+package com.jtyang.test.recorder;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.fileChooser.FileChooser;
+import com.intellij.openapi.fileChooser.FileChooserDescriptorFactory;
+import com.intellij.openapi.fileChooser.FileSaverDescriptor;
+import com.intellij.openapi.fileChooser.ex.FileSaverDialogImpl;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWrapper;
+
+import java.io.File;
+
+import static org.apache.commons.lang.StringUtils.isEmpty;
+
+/**
+ * Rebuild a record from the {@link RecordJournal} of a session that did not finish, e.g. because the IDE crashed.
+ *
+ * @author jtyang
+ */
+public class RecoverRecordAction extends AnAction {
+    @Override
+    public void actionPerformed(AnActionEvent event) {
+        Project project = event.getProject();
+        if (project == null || project.isDisposed()) {
+            return;
+        }
+        VirtualFile journalsDirectory = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(RecordJournal.getJournalsDirectory());
+        VirtualFile journalDirectory = FileChooser.chooseFile(FileChooserDescriptorFactory.createSingleFolderDescriptor()
+                .withTitle("Choose Record Journal")
+                .withDescription("Choose the journal directory of an unfinished recording session"), project, journalsDirectory);
+        if (journalDirectory == null) {
+            return;
+        }
+        FileSaverDescriptor descriptor = new FileSaverDescriptor("Setup Record Directory", "Setup or choose a directory to persist record files");
+        VirtualFileWrapper fileWrapper = new FileSaverDialogImpl(descriptor, project).save((VirtualFile) null, journalDirectory.getName());
+        if (fileWrapper == null) {
+            return;
+        }
+        try {
+            File recordDir = fileWrapper.getFile();
+            ProgressManager.getInstance().runProcessWithProgressSynchronously(() -> {
+                RecordJournal.recover(new File(journalDirectory.getPath()), recordDir, AdaptedRecorderSettings.getInstance());
+                return null;
+            }, "Recovering Record", false, project);
+        } catch (Exception ex) {
+            String message = isEmpty(ex.getMessage()) ? "Unknown error" : ex.getMessage();
+            Messages.showErrorDialog(project, message, "Could not Recover Record");
+        }
+    }
+}
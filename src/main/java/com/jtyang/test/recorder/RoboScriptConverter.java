@@ -0,0 +1,56 @@
+package com.jtyang.test.recorder;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.jtyang.test.recorder.MyRecordingDialog.MyElementDescriptorSerializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.function.UnaryOperator;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Converts robo scripts between JSON (as written by {@link RoboScriptWriter}) and the binary form of
+ * {@link BinaryRoboScriptWriter}, streaming one event at a time both ways. A script converted there and back
+ * is the same JSON.
+ *
+ * @author jtyang
+ */
+public final class RoboScriptConverter {
+    private RoboScriptConverter() {
+    }
+
+    /**
+     * @return number of events converted
+     */
+    public static int toBinary(File jsonScript, File binaryScript) throws IOException {
+        try (JsonReader reader = new JsonReader(Files.newBufferedReader(jsonScript.toPath(), UTF_8));
+             BinaryRoboScriptWriter writer = new BinaryRoboScriptWriter(binaryScript)) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                writer.append(JsonParser.parseReader(reader).getAsJsonObject());
+            }
+            reader.endArray();
+            return writer.getEventCount();
+        }
+    }
+
+    /**
+     * @param compact see {@link RoboScriptWriter#RoboScriptWriter}
+     * @return number of events converted
+     */
+    public static int toJson(File binaryScript, File jsonScript, boolean compact) throws IOException {
+        // Class names were resolved when the script was first written
+        Gson gson = RoboScriptWriter.createGson(new MyElementDescriptorSerializer(UnaryOperator.identity()));
+        try (BinaryRoboScriptReader reader = new BinaryRoboScriptReader(binaryScript);
+             RoboScriptWriter writer = new RoboScriptWriter(Files.newBufferedWriter(jsonScript.toPath(), UTF_8), gson, compact)) {
+            for (int i = 0; i < reader.size(); i++) {
+                writer.append(reader.get(i));
+            }
+            return writer.getEventCount();
+        }
+    }
+}
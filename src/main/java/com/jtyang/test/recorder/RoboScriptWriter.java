@@ -0,0 +1,108 @@
+package com.jtyang.test.recorder;
+
+import com.google.gct.testrecorder.event.ElementDescriptor;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonSerializer;
+import com.google.gson.stream.JsonWriter;
+import com.intellij.openapi.project.Project;
+import com.jtyang.test.recorder.MyRecordingDialog.MyElementDescriptorSerializer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Streams events of a robo script as a JSON array, one event at a time, without building the document in memory.
+ * The array is closed by {@link #close()}.
+ *
+ * @author jtyang
+ */
+public class RoboScriptWriter implements Closeable, Flushable {
+    private final Gson gson;
+    private final JsonWriter jsonWriter;
+    private int eventCount;
+
+    /**
+     * @param compact write without whitespace, otherwise indent like {@link GsonBuilder#setPrettyPrinting()}
+     */
+    public RoboScriptWriter(Writer out, Gson gson, boolean compact) throws IOException {
+        this.gson = gson;
+        this.jsonWriter = new JsonWriter(out);
+        if (!compact) {
+            jsonWriter.setIndent("  ");
+        }
+        jsonWriter.beginArray();
+    }
+
+    public static RoboScriptWriter open(File file, Project project, boolean compact) throws IOException {
+        return new RoboScriptWriter(Files.newBufferedWriter(file.toPath(), UTF_8), createGson(project), compact);
+    }
+
+    /**
+     * @param project resolves class names of element descriptors, null to write them as they are
+     */
+    public static Gson createGson(Project project) {
+        return createGson(project == null ? null : new MyElementDescriptorSerializer(project));
+    }
+
+    /**
+     * @param elementDescriptorSerializer null to write element descriptors as they are
+     */
+    public static Gson createGson(JsonSerializer<ElementDescriptor> elementDescriptorSerializer) {
+        GsonBuilder gsonBuilder = new GsonBuilder();
+        if (elementDescriptorSerializer != null) {
+            gsonBuilder.registerTypeAdapter(ElementDescriptor.class, elementDescriptorSerializer);
+        }
+        return gsonBuilder.create();
+    }
+
+    /**
+     * Write {@code events} as a whole robo script to {@code out}, which is closed afterwards.
+     */
+    public static void write(Gson gson, List<MyTestRecorderEvent> events, Writer out, boolean compact) throws IOException {
+        try (RoboScriptWriter scriptWriter = new RoboScriptWriter(out, gson, compact)) {
+            for (MyTestRecorderEvent event : events) {
+                scriptWriter.append(event);
+            }
+        }
+    }
+
+    public void append(MyTestRecorderEvent event) throws IOException {
+        gson.toJson(event, MyTestRecorderEvent.class, jsonWriter);
+        eventCount++;
+    }
+
+    /**
+     * Append an event already serialized, e.g. read back from a {@link RecordJournal}.
+     */
+    public void append(JsonElement event) throws IOException {
+        gson.toJson(event, jsonWriter);
+        eventCount++;
+    }
+
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        jsonWriter.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            jsonWriter.endArray();
+        } finally {
+            jsonWriter.close();
+        }
+    }
+}
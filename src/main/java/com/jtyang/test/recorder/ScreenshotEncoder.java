@@ -0,0 +1,264 @@
+package com.jtyang.test.recorder;
+
+import com.google.gct.testrecorder.util.ImageHelper;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.jtyang.test.recorder.RecordingMetrics.Stage;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Encode stage of screenshots: rotates, optionally downscales and writes them on a dedicated worker pool,
+ * so that the capture worker can go on with the next capture right away.
+ *
+ * @author jtyang
+ */
+public class ScreenshotEncoder implements Disposable {
+    private static final Logger LOGGER = Logger.getInstance(ScreenshotEncoder.class);
+
+    public enum ImageCodec {
+        PNG("png", "png"),
+        /**
+         * Lossless WebP, requires an ImageIO writer plugin for "webp", otherwise falls back to PNG
+         */
+        WEBP("webp", "webp"),
+        JPEG("jpeg", "jpg");
+
+        private final String formatName;
+        private final String extension;
+
+        ImageCodec(String formatName, String extension) {
+            this.formatName = formatName;
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final ImageCodec codec;
+    private final float compressionQuality;
+    private final int maxDimension;
+    private final Set<CompletableFuture<File>> inFlight = ConcurrentHashMap.newKeySet();
+    private volatile boolean disposed;
+
+    /**
+     * @param compressionLevel 0 (fastest) to 9 (smallest), for PNG and WebP
+     * @param jpegQuality      0 to 100, for JPEG
+     * @param maxDimension     longest edge of written images in pixels, 0 to keep the original size
+     */
+    public ScreenshotEncoder(ImageCodec codec, int compressionLevel, int jpegQuality, int maxDimension, int threads) {
+        this.executor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Adapted Test Recorder Encode", Math.max(1, threads));
+        this.codec = resolveCodec(codec);
+        this.compressionQuality = this.codec == ImageCodec.JPEG
+                ? clamp(jpegQuality / 100f)
+                // ImageIO takes a quality, where 1 means least compression
+                : clamp(1f - compressionLevel / 9f);
+        this.maxDimension = maxDimension;
+    }
+
+    public static ScreenshotEncoder fromSettings(AdaptedRecorderSettings settings) {
+        return new ScreenshotEncoder(settings.SCREENSHOT_CODEC, settings.SCREENSHOT_COMPRESSION_LEVEL, settings.SCREENSHOT_JPEG_QUALITY,
+                settings.SCREENSHOT_MAX_DIMENSION, settings.ENCODE_THREADS);
+    }
+
+    public ImageCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Rotate, scale and write {@code image} to {@code target} on the encode pool.
+     *
+     * @param target  file to write, null for a new temp file, which the caller deletes
+     * @param metrics records rotate and encode times and bytes written, null if not needed
+     */
+    public CompletableFuture<File> submit(BufferedImage image, int rotation, File target, RecordingMetrics metrics) {
+        return submit(() -> encode(image, rotation, target, metrics));
+    }
+
+    /**
+     * Rotate, scale and write {@code frame} to {@code target} on the encode pool.
+     *
+     * @param target  file to write, null for a new temp file, which the caller deletes
+     * @param metrics records rotate and encode times and bytes written, null if not needed
+     */
+    public CompletableFuture<File> submit(RawFrame frame, int rotation, File target, RecordingMetrics metrics) {
+        return submit(() -> encode(frame, rotation, target, metrics));
+    }
+
+    private CompletableFuture<File> submit(Callable<File> encode) {
+        if (disposed) {
+            CompletableFuture<File> cancelled = new CompletableFuture<>();
+            cancelled.cancel(false);
+            return cancelled;
+        }
+        CompletableFuture<File> future = new CompletableFuture<>();
+        inFlight.add(future);
+        future.whenComplete((file, t) -> inFlight.remove(future));
+        executor.execute(() -> {
+            try {
+                future.complete(encode.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Synchronous variant of {@link #submit(BufferedImage, int, File, RecordingMetrics)}.
+     */
+    public File encode(BufferedImage image, int rotation, File target, RecordingMetrics metrics) throws IOException {
+        long start = System.nanoTime();
+        BufferedImage rotated = ImageHelper.rotateImage(image, rotation);
+        if (metrics != null) {
+            metrics.recordSince(Stage.ROTATE, start);
+        }
+        return write(rotated, target, metrics);
+    }
+
+    /**
+     * Synchronous variant of {@link #submit(RawFrame, int, File, RecordingMetrics)}, rotation is an index remap of the pixels.
+     */
+    public File encode(RawFrame frame, int rotation, File target) throws IOException {
+        return encode(frame, rotation, target, null);
+    }
+
+    public File encode(RawFrame frame, int rotation, File target, RecordingMetrics metrics) throws IOException {
+        long start = System.nanoTime();
+        RawFrame rotated = frame.rotate(rotation);
+        if (metrics != null) {
+            metrics.recordSince(Stage.ROTATE, start);
+        }
+        return write(rotated.toImage(), target, metrics);
+    }
+
+    /**
+     * Wait until every image submitted so far is written.
+     *
+     * @return false if timed out
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (CompletableFuture<File> future : inFlight) {
+            try {
+                future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                return false;
+            } catch (ExecutionException e) {
+                // Reported by whoever submitted it
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void dispose() {
+        disposed = true;
+    }
+
+    private BufferedImage prepare(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double scale = maxDimension > 0 ? Math.min(1.0, (double) maxDimension / Math.max(width, height)) : 1.0;
+        // JPEG has no alpha channel
+        int type = codec == ImageCodec.JPEG ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+        if (scale == 1.0 && (codec != ImageCodec.JPEG || !image.getColorModel().hasAlpha())) {
+            return image;
+        }
+        int scaledWidth = Math.max(1, (int) Math.round(width * scale));
+        int scaledHeight = Math.max(1, (int) Math.round(height * scale));
+        BufferedImage scaled = new BufferedImage(scaledWidth, scaledHeight, type);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, scaledWidth, scaledHeight, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    /**
+     * Scale and write {@code image}, scaling is counted as encoding. A partly written target is deleted.
+     */
+    private File write(BufferedImage image, File target, RecordingMetrics metrics) throws IOException {
+        long start = System.nanoTime();
+        BufferedImage prepared = prepare(image);
+        if (target == null) {
+            target = File.createTempFile("ui_screenshot", "." + codec.getExtension());
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(codec.formatName).next();
+        try (ImageOutputStream out = new FileImageOutputStream(target)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                String[] compressionTypes = param.getCompressionTypes();
+                if (compressionTypes != null && compressionTypes.length > 0) {
+                    param.setCompressionType(pickCompressionType(compressionTypes));
+                }
+                param.setCompressionQuality(compressionQuality);
+            }
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(prepared, null, null), param);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(target.toPath());
+            throw e;
+        } finally {
+            writer.dispose();
+        }
+        if (metrics != null) {
+            metrics.recordSince(Stage.ENCODE, start);
+            metrics.addBytesWritten(target.length());
+        }
+        return target;
+    }
+
+    private String pickCompressionType(String[] compressionTypes) {
+        if (codec == ImageCodec.WEBP) {
+            for (String compressionType : compressionTypes) {
+                if (compressionType.toLowerCase(Locale.ROOT).contains("lossless")) {
+                    return compressionType;
+                }
+            }
+        }
+        return compressionTypes[0];
+    }
+
+    private static ImageCodec resolveCodec(ImageCodec codec) {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(codec.formatName);
+        if (writers.hasNext()) {
+            return codec;
+        }
+        LOGGER.warn("No ImageIO writer for " + codec.formatName + ", screenshots are written as PNG");
+        return ImageCodec.PNG;
+    }
+
+    private static float clamp(float quality) {
+        return Math.max(0f, Math.min(1f, quality));
+    }
+}
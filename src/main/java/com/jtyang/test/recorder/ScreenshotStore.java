@@ -0,0 +1,210 @@
+package com.jtyang.test.recorder;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Content-addressed screenshot store in front of {@link ScreenshotEncoder}.
+ * <p>
+ * Screenshots are keyed by a hash of their raw pixels (and rotation), and identical frames share one file,
+ * named after the key. In {@link DedupMode#NEAR_DUPLICATE} mode, a frame whose perceptual (difference) hash
+ * is within a few bits of the previous frame also reuses the previous file.
+ *
+ * @author jtyang
+ */
+public class ScreenshotStore {
+    public enum DedupMode {
+        OFF,
+        /**
+         * Share files between pixel-identical frames
+         */
+        EXACT,
+        /**
+         * Also share the previous file with frames that look nearly the same, small changes (e.g. a caret) are lost
+         */
+        NEAR_DUPLICATE
+    }
+
+    private final ScreenshotEncoder encoder;
+    private final DedupMode dedupMode;
+    private final int nearDuplicateThreshold;
+    private final Map<String, CompletableFuture<File>> screenshotsByKey = new ConcurrentHashMap<>();
+    private final AtomicInteger duplicateCount = new AtomicInteger();
+    private final File storeDirectory;
+    private final RecordingMetrics metrics;
+    private long previousDifferenceHash;
+    private CompletableFuture<File> previousScreenshot;
+
+    /**
+     * @param nearDuplicateThreshold max number of differing bits of 64-bit difference hashes for near-duplicate frames
+     * @param storeDirectory         where screenshots are written, e.g. the artifacts directory of {@link RecordJournal}
+     * @param metrics                of the session the screenshots belong to, null if not needed
+     */
+    public ScreenshotStore(ScreenshotEncoder encoder, DedupMode dedupMode, int nearDuplicateThreshold, File storeDirectory,
+                           RecordingMetrics metrics) {
+        this.encoder = encoder;
+        this.dedupMode = dedupMode;
+        this.nearDuplicateThreshold = nearDuplicateThreshold;
+        this.storeDirectory = storeDirectory;
+        this.metrics = metrics;
+    }
+
+    public static ScreenshotStore fromSettings(ScreenshotEncoder encoder, AdaptedRecorderSettings settings, File storeDirectory,
+                                               RecordingMetrics metrics) {
+        return new ScreenshotStore(encoder, settings.SCREENSHOT_DEDUP_MODE, settings.NEAR_DUPLICATE_THRESHOLD, storeDirectory, metrics);
+    }
+
+    /**
+     * Store the screenshot, reusing an already stored file if {@code image} duplicates it.
+     */
+    public CompletableFuture<File> store(BufferedImage image, int rotation) {
+        return store(dedupMode == DedupMode.OFF ? null : getPixels(image), image.getWidth(), image.getHeight(), rotation,
+                target -> encoder.submit(image, rotation, target, metrics));
+    }
+
+    /**
+     * Store the screenshot, reusing an already stored file if {@code frame} duplicates it.
+     * Pixels of the frame are hashed as they are, rotation is left to the encoder.
+     */
+    public CompletableFuture<File> store(RawFrame frame, int rotation) {
+        return store(frame.getPixels(), frame.getWidth(), frame.getHeight(), rotation,
+                target -> encoder.submit(frame, rotation, target, metrics));
+    }
+
+    /**
+     * @param pixels not needed for {@link DedupMode#OFF}
+     * @param submit submits the screenshot to the encoder, to be written to the given file
+     */
+    private synchronized CompletableFuture<File> store(int[] pixels, int width, int height, int rotation,
+                                                       Function<File, CompletableFuture<File>> submit) {
+        if (dedupMode == DedupMode.OFF) {
+            try {
+                return submit.apply(File.createTempFile("ui_screenshot", "." + encoder.getCodec().getExtension(), storeDirectory));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        if (dedupMode == DedupMode.NEAR_DUPLICATE) {
+            long differenceHash = differenceHash(pixels, width, height);
+            // Compare with the frame actually stored, so that slow drifts are not swallowed frame by frame
+            if (previousScreenshot != null && Long.bitCount(differenceHash ^ previousDifferenceHash) <= nearDuplicateThreshold) {
+                duplicateCount.incrementAndGet();
+                return previousScreenshot;
+            }
+            previousDifferenceHash = differenceHash;
+        }
+        String key = String.format("%016x_%dx%d_r%d", contentHash(pixels), width, height, rotation);
+        CompletableFuture<File> screenshot = screenshotsByKey.get(key);
+        if (screenshot != null && !screenshot.isCompletedExceptionally() && !screenshot.isCancelled()) {
+            duplicateCount.incrementAndGet();
+        } else {
+            File target = new File(storeDirectory, "ui_screenshot_" + key + "." + encoder.getCodec().getExtension());
+            screenshot = submit.apply(target);
+            screenshotsByKey.put(key, screenshot);
+        }
+        previousScreenshot = screenshot;
+        return screenshot;
+    }
+
+    /**
+     * Stop handing out the file named {@code filename}, e.g. once it is deleted. Its frames are stored anew.
+     */
+    public synchronized void forget(String filename) {
+        screenshotsByKey.values().removeIf(screenshot -> isFile(screenshot, filename));
+        if (previousScreenshot != null && isFile(previousScreenshot, filename)) {
+            previousScreenshot = null;
+        }
+    }
+
+    private static boolean isFile(CompletableFuture<File> screenshot, String filename) {
+        File file = screenshot.isDone() && !screenshot.isCompletedExceptionally() ? screenshot.join() : null;
+        return file != null && file.getName().equals(filename);
+    }
+
+    /**
+     * Number of stored screenshots that reused an existing file.
+     */
+    public int getDuplicateCount() {
+        return duplicateCount.get();
+    }
+
+    private static int[] getPixels(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getDataBuffer().getNumBanks() == 1
+                && raster.getDataBuffer().getOffset() == 0
+                && raster.getNumDataElements() == 1
+                && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == width) {
+            int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            // Packed int rasters (TYPE_INT_*) can be hashed in place, unless they are a view into a larger one
+            if (data.length == width * height) {
+                return data;
+            }
+        }
+        return image.getRGB(0, 0, width, height, null, 0, width);
+    }
+
+    /**
+     * 64-bit multiplicative hash over the pixels, mixed in pairs to halve the multiplications.
+     */
+    static long contentHash(int[] pixels) {
+        long hash = 0xcbf29ce484222325L ^ pixels.length;
+        int i = 0;
+        for (; i + 1 < pixels.length; i += 2) {
+            long pair = ((long) pixels[i] << 32) | (pixels[i + 1] & 0xffffffffL);
+            hash = (hash ^ pair) * 0x9e3779b97f4a7c15L;
+            hash ^= hash >>> 29;
+        }
+        if (i < pixels.length) {
+            hash = (hash ^ pixels[i]) * 0x9e3779b97f4a7c15L;
+        }
+        return hash ^ (hash >>> 32);
+    }
+
+    /**
+     * dHash: luminance of a 9x8 grid, one bit per horizontally adjacent pair telling whether brightness increases.
+     * Each cell is sampled sparsely, which is enough for screens and keeps it far cheaper than the exact hash.
+     */
+    static long differenceHash(int[] pixels, int width, int height) {
+        final int columns = 9, rows = 8, samples = 4;
+        int[] luminance = new int[columns * rows];
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int sum = 0;
+                for (int sy = 0; sy < samples; sy++) {
+                    int y = Math.min(height - 1, (int) ((row + (sy + 0.5) / samples) * height / rows));
+                    for (int sx = 0; sx < samples; sx++) {
+                        int x = Math.min(width - 1, (int) ((column + (sx + 0.5) / samples) * width / columns));
+                        int argb = pixels[y * width + x];
+                        sum += ((argb >> 16) & 0xff) * 299 + ((argb >> 8) & 0xff) * 587 + (argb & 0xff) * 114;
+                    }
+                }
+                luminance[row * columns + column] = sum;
+            }
+        }
+        long hash = 0;
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns - 1; column++) {
+                hash <<= 1;
+                if (luminance[row * columns + column] < luminance[row * columns + column + 1]) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+}
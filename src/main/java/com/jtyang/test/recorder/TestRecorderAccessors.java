@@ -0,0 +1,85 @@
+package com.jtyang.test.recorder;
+
+import com.google.gct.testrecorder.ui.RecordingDialog;
+import com.google.gct.testrecorder.ui.TestRecorderScreenshotTask;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.util.List;
+
+/**
+ * Access to private members of Test Recorder this plugin depends on, resolved once when the class is loaded.
+ * <p>
+ * If the bundled Test Recorder no longer has them, {@link #getIncompatibility()} tells what is missing
+ * and the accessors throw {@link IllegalStateException}.
+ *
+ * @author jtyang
+ */
+final class TestRecorderAccessors {
+    private static final VarHandle SCREENSHOT_TASK_SUCCESS;
+    private static final VarHandle SCREENSHOT_TASK_UI_HIERARCHY_LOCAL_FILE;
+    private static final MethodHandle RECORDING_DIALOG_GET_ALL_MODEL_ACTIONS;
+    private static final String INCOMPATIBILITY;
+
+    static {
+        VarHandle success = null;
+        VarHandle uiHierarchyLocalFile = null;
+        MethodHandle getAllModelActions = null;
+        String incompatibility = null;
+        try {
+            MethodHandles.Lookup taskLookup = MethodHandles.privateLookupIn(TestRecorderScreenshotTask.class, MethodHandles.lookup());
+            success = taskLookup.findVarHandle(TestRecorderScreenshotTask.class, "success", boolean.class);
+            uiHierarchyLocalFile = taskLookup.findVarHandle(TestRecorderScreenshotTask.class, "myUiHierarchyLocalFile", File.class);
+            MethodHandles.Lookup dialogLookup = MethodHandles.privateLookupIn(RecordingDialog.class, MethodHandles.lookup());
+            // The element type of the returned list is none of our business
+            getAllModelActions = dialogLookup.unreflect(RecordingDialog.class.getDeclaredMethod("getAllModelActions"))
+                    .asType(MethodType.methodType(List.class, RecordingDialog.class));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            incompatibility = "The bundled Test Recorder is not compatible with Adapted Test Recorder: " + e;
+        }
+        SCREENSHOT_TASK_SUCCESS = success;
+        SCREENSHOT_TASK_UI_HIERARCHY_LOCAL_FILE = uiHierarchyLocalFile;
+        RECORDING_DIALOG_GET_ALL_MODEL_ACTIONS = getAllModelActions;
+        INCOMPATIBILITY = incompatibility;
+    }
+
+    private TestRecorderAccessors() {
+    }
+
+    /**
+     * @return why the bundled Test Recorder cannot be worked with, or null if it can
+     */
+    static String getIncompatibility() {
+        return INCOMPATIBILITY;
+    }
+
+    static boolean isSuccess(TestRecorderScreenshotTask task) {
+        checkCompatible();
+        return (boolean) SCREENSHOT_TASK_SUCCESS.get(task);
+    }
+
+    static File getUiHierarchyLocalFile(TestRecorderScreenshotTask task) {
+        checkCompatible();
+        return (File) SCREENSHOT_TASK_UI_HIERARCHY_LOCAL_FILE.get(task);
+    }
+
+    static List<?> getAllModelActions(RecordingDialog dialog) {
+        checkCompatible();
+        try {
+            return (List<?>) RECORDING_DIALOG_GET_ALL_MODEL_ACTIONS.invokeExact(dialog);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static void checkCompatible() {
+        if (INCOMPATIBILITY != null) {
+            throw new IllegalStateException(INCOMPATIBILITY);
+        }
+    }
+}
@@ -1,25 +1,133 @@
 package com.jtyang.test.recorder;
 
 import com.android.uiautomator.UiAutomatorModel;
+import com.android.uiautomator.tree.BasicTreeNode;
+import com.intellij.openapi.diagnostic.Logger;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
- * {@link UiAutomatorModel} that provide access to original XML dump file
+ * {@link UiAutomatorModel} that provide access to original XML dump file.
+ * <p>
+ * The dump is not parsed on construction: root attributes (e.g. rotation) are read by a streaming pass
+ * which stops at the root element, and the full tree is only built once {@link #getXmlRootNode()} is called.
  *
  * @author jtyang
  */
 public class UiAutomatorModelStub extends UiAutomatorModel {
+    private static final Logger LOGGER = Logger.getInstance(UiAutomatorModelStub.class);
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+    // Parsed by super() in place of the real dump, so that the constructor costs next to nothing
+    private static final File PLACEHOLDER_DUMP_FILE = createPlaceholderDumpFile();
+
     private final File xmlDumpFile;
+    private volatile Map<String, String> rootAttributes;
+    private volatile UiAutomatorModel fullModel;
 
     public UiAutomatorModelStub(File xmlDumpFile) {
-        // TODO:    So far the file needn't to be parsed entirely,
-        //          should we avoid super() from parsing the dump file?
-        super(xmlDumpFile);
+        super(PLACEHOLDER_DUMP_FILE != null ? PLACEHOLDER_DUMP_FILE : xmlDumpFile);
         this.xmlDumpFile = xmlDumpFile;
+        if (PLACEHOLDER_DUMP_FILE == null) {
+            // super() has already parsed the real dump
+            fullModel = this;
+        }
     }
 
     public File getXmlDumpFile() {
         return xmlDumpFile;
     }
+
+    /**
+     * Rotation recorded in the root element of the dump, in the same unit as {@code UiAutomatorNodeHelper#getRotation}.
+     */
+    public int getRotation() {
+        String rotation = getRootAttributes().get("rotation");
+        if (rotation != null) {
+            try {
+                return Integer.parseInt(rotation.trim());
+            } catch (NumberFormatException ignored) {
+                // fall through
+            }
+        }
+        return 0;
+    }
+
+    public Map<String, String> getRootAttributes() {
+        Map<String, String> attributes = rootAttributes;
+        if (attributes == null) {
+            rootAttributes = attributes = readRootAttributes(xmlDumpFile);
+        }
+        return attributes;
+    }
+
+    /**
+     * Build the full tree of the dump on first call.
+     */
+    @Override
+    public BasicTreeNode getXmlRootNode() {
+        UiAutomatorModel model = fullModel;
+        if (model == null) {
+            synchronized (this) {
+                if ((model = fullModel) == null) {
+                    fullModel = model = new UiAutomatorModel(xmlDumpFile);
+                }
+            }
+        }
+        return model == this ? super.getXmlRootNode() : model.getXmlRootNode();
+    }
+
+    static Map<String, String> readRootAttributes(File xmlDumpFile) {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(xmlDumpFile.toPath()))) {
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        Map<String, String> attributes = new HashMap<>();
+                        for (int i = 0; i < reader.getAttributeCount(); i++) {
+                            attributes.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                        }
+                        return attributes;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | XMLStreamException e) {
+            LOGGER.warn("Could not read root of hierarchy dump " + xmlDumpFile, e);
+        }
+        return Collections.emptyMap();
+    }
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    private static File createPlaceholderDumpFile() {
+        try {
+            File placeholder = File.createTempFile("ui_hierarchy_placeholder", ".xml");
+            placeholder.deleteOnExit();
+            Files.write(placeholder.toPath(),
+                    "<?xml version='1.0' encoding='UTF-8' standalone='yes' ?><hierarchy rotation=\"0\"></hierarchy>".getBytes(UTF_8));
+            return placeholder;
+        } catch (IOException e) {
+            LOGGER.warn("Could not create placeholder hierarchy dump, dumps will be parsed eagerly", e);
+            return null;
+        }
+    }
 }
@@ -0,0 +1,61 @@
+package com.jtyang.test.recorder;
+
+import com.google.gct.testrecorder.event.TestRecorderEvent;
+import com.jtyang.test.recorder.CapturePolicy.Artifacts;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * @author jtyang
+ */
+class CapturePolicyTest {
+    @Test
+    void parsesArtifactPolicies() {
+        CapturePolicy policy = new CapturePolicy(Map.of(
+                TestRecorderEvent.VIEW_CLICK, "HIERARCHY_ONLY",
+                TestRecorderEvent.VIEW_SWIPE, " screenshot_only ",
+                TestRecorderEvent.WINDOW_CONTENT_CHANGED, "NONE",
+                TestRecorderEvent.PRESS_BACK, "FULL"));
+        assertEquals(Artifacts.HIERARCHY_ONLY, policy.next(TestRecorderEvent.VIEW_CLICK));
+        assertEquals(Artifacts.SCREENSHOT_ONLY, policy.next(TestRecorderEvent.VIEW_SWIPE));
+        assertEquals(Artifacts.NONE, policy.next(TestRecorderEvent.WINDOW_CONTENT_CHANGED));
+        assertEquals(Artifacts.FULL, policy.next(TestRecorderEvent.PRESS_BACK));
+        assertEquals(Artifacts.FULL, policy.next(TestRecorderEvent.TEXT_CHANGE));
+    }
+
+    @Test
+    void samplesEveryNthEventOfItsType() {
+        CapturePolicy policy = new CapturePolicy(Map.of(TestRecorderEvent.TEXT_CHANGE, "sampled: 3"));
+        Artifacts[] expected = {Artifacts.FULL, Artifacts.NONE, Artifacts.NONE, Artifacts.FULL, Artifacts.NONE};
+        for (Artifacts artifacts : expected) {
+            assertEquals(artifacts, policy.next(TestRecorderEvent.TEXT_CHANGE));
+            // Other types do not count towards the sampling
+            assertEquals(Artifacts.FULL, policy.next(TestRecorderEvent.VIEW_CLICK));
+        }
+    }
+
+    @Test
+    void invalidPoliciesCaptureInFull() {
+        CapturePolicy policy = new CapturePolicy(Map.of(
+                TestRecorderEvent.VIEW_CLICK, "EVERYTHING",
+                TestRecorderEvent.TEXT_CHANGE, "SAMPLED:0",
+                TestRecorderEvent.VIEW_SWIPE, "SAMPLED:often"));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Artifacts.FULL, policy.next(TestRecorderEvent.VIEW_CLICK));
+            assertEquals(Artifacts.FULL, policy.next(TestRecorderEvent.TEXT_CHANGE));
+            assertEquals(Artifacts.FULL, policy.next(TestRecorderEvent.VIEW_SWIPE));
+        }
+    }
+
+    @Test
+    void unionCapturesWhatEitherNeeds() {
+        assertEquals(Artifacts.FULL, Artifacts.HIERARCHY_ONLY.union(Artifacts.SCREENSHOT_ONLY));
+        assertEquals(Artifacts.HIERARCHY_ONLY, Artifacts.HIERARCHY_ONLY.union(Artifacts.NONE));
+        assertEquals(Artifacts.SCREENSHOT_ONLY, Artifacts.NONE.union(Artifacts.SCREENSHOT_ONLY));
+        assertEquals(Artifacts.NONE, Artifacts.NONE.union(Artifacts.NONE));
+        assertEquals(Artifacts.FULL, Artifacts.FULL.union(Artifacts.NONE));
+    }
+}
@@ -0,0 +1,232 @@
+package com.jtyang.test.recorder;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.RawImage;
+import com.jtyang.test.recorder.CapturePolicy.Artifacts;
+import com.jtyang.test.recorder.DeviceCapturer.Capture;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Drives {@link DeviceCapturer} with a fake device answering the shell commands, screenshots and pulls it asks for.
+ *
+ * @author jtyang
+ */
+class DeviceCapturerTest {
+    private static final String HIERARCHY = "<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>"
+            + "<hierarchy rotation=\"0\"><node index=\"0\" class=\"android.widget.Button\" text=\"OK\"/></hierarchy>";
+
+    @TempDir
+    Path dumpDirectory;
+
+    private final FakeDevice fakeDevice = new FakeDevice();
+    private ExecutorService executor;
+    private DeviceCapturer capturer;
+
+    @BeforeEach
+    void setUp() {
+        executor = Executors.newSingleThreadExecutor();
+        capturer = new DeviceCapturer(fakeDevice.asDevice(), executor, dumpDirectory.toFile(), null);
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void capturesTheScreenshotAndHierarchyOfTheDevice() throws IOException {
+        byte[] data = new byte[3 * 2 * 4];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 11 + 3);
+        }
+        fakeDevice.screenshot = rawImage(3, 2, data);
+        Capture capture = capturer.capture(Artifacts.FULL, false);
+        assertFalse(capture.isUnchanged());
+        assertEquals(3, capture.getScreenshot().getWidth());
+        assertEquals(2, capture.getScreenshot().getHeight());
+        assertArrayEquals(RawFrame.fromRawImage(fakeDevice.screenshot).getPixels(), capture.getScreenshot().getPixels());
+        assertEquals(HIERARCHY, Files.readString(capture.getHierarchyFile().toPath()));
+        assertNotNull(capture.getSkewMillis());
+        // The hierarchy tells the rotation of a full capture
+        assertNull(capture.getRotation());
+
+        Capture hierarchyOnly = capturer.capture(Artifacts.HIERARCHY_ONLY, false);
+        assertNull(hierarchyOnly.getScreenshot());
+        assertNull(hierarchyOnly.getSkewMillis());
+        assertEquals(HIERARCHY, Files.readString(hierarchyOnly.getHierarchyFile().toPath()));
+        assertEquals(1, fakeDevice.screenshotCount);
+    }
+
+    @Test
+    void failedDumpLeavesNothingBehind() throws IOException {
+        fakeDevice.dumpFails = true;
+        assertThrows(IOException.class, () -> capturer.capture(Artifacts.FULL, false));
+        assertThrows(IOException.class, () -> capturer.capture(Artifacts.FULL, true));
+        assertEquals(0, fakeDevice.pullCount);
+        try (Stream<Path> files = Files.list(dumpDirectory)) {
+            assertEquals(0L, files.count());
+        }
+        // The dump of an earlier capture must not be pulled instead
+        assertTrue(fakeDevice.commands.stream().allMatch(command -> command.startsWith("rm -f ")));
+    }
+
+    @Test
+    void unchangedHierarchyIsNotTransferredAgain() throws IOException {
+        Capture first = capturer.capture(Artifacts.FULL, true);
+        assertFalse(first.isUnchanged());
+        assertNotNull(first.getScreenshot());
+        assertNotNull(first.getHierarchyFile());
+
+        Capture second = capturer.capture(Artifacts.FULL, true);
+        assertTrue(second.isUnchanged());
+        assertEquals(1, fakeDevice.screenshotCount);
+        assertEquals(1, fakeDevice.pullCount);
+
+        fakeDevice.hierarchy = HIERARCHY.replace("OK", "Cancel");
+        assertFalse(capturer.capture(Artifacts.FULL, true).isUnchanged());
+        assertTrue(capturer.capture(Artifacts.FULL, true).isUnchanged());
+        assertEquals(2, fakeDevice.screenshotCount);
+        assertEquals(2, fakeDevice.pullCount);
+
+        capturer.invalidate();
+        assertFalse(capturer.capture(Artifacts.FULL, true).isUnchanged());
+    }
+
+    @Test
+    void captureWithoutFingerprintIsNotReused() throws IOException {
+        capturer.capture(Artifacts.FULL, true);
+        // Taken without md5, the device may have changed since the fingerprinted capture
+        assertFalse(capturer.capture(Artifacts.FULL, false).isUnchanged());
+        assertFalse(capturer.capture(Artifacts.FULL, true).isUnchanged());
+        assertTrue(capturer.capture(Artifacts.FULL, true).isUnchanged());
+        // Captures of one artifact do not change what the next full capture is compared with
+        capturer.capture(Artifacts.HIERARCHY_ONLY, false);
+        assertTrue(capturer.capture(Artifacts.FULL, true).isUnchanged());
+    }
+
+    @Test
+    void screenshotAloneComesWithTheRotation() throws IOException {
+        fakeDevice.surfaceOrientation = "  SurfaceOrientation: 3\n";
+        Capture capture = capturer.capture(Artifacts.SCREENSHOT_ONLY, false);
+        assertEquals(Integer.valueOf(3), capture.getRotation());
+        assertNotNull(capture.getScreenshot());
+        assertNull(capture.getHierarchyFile());
+        assertEquals(0, fakeDevice.pullCount);
+
+        // Without the rotation, the hierarchy is captured to tell it
+        fakeDevice.surfaceOrientation = "";
+        Capture fallback = capturer.capture(Artifacts.SCREENSHOT_ONLY, true);
+        assertNull(fallback.getRotation());
+        assertNotNull(fallback.getScreenshot());
+        assertNotNull(fallback.getHierarchyFile());
+    }
+
+    /**
+     * Answers like a device whose screen shows {@link #hierarchy} and {@link #screenshot}.
+     */
+    private static class FakeDevice {
+        private final List<String> commands = new ArrayList<>();
+        private String hierarchy = HIERARCHY;
+        private RawImage screenshot = rawImage(2, 2, new byte[2 * 2 * 4]);
+        private String surfaceOrientation = "";
+        private boolean dumpFails;
+        private int screenshotCount;
+        private int pullCount;
+
+        private IDevice asDevice() {
+            return (IDevice) Proxy.newProxyInstance(IDevice.class.getClassLoader(), new Class<?>[]{IDevice.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getSerialNumber":
+                        return "emulator-5554";
+                    case "executeShellCommand":
+                        executeShellCommand((String) args[0], (IShellOutputReceiver) args[1]);
+                        return null;
+                    case "getScreenshot":
+                        return getScreenshot();
+                    case "pullFile":
+                        pullFile((String) args[1]);
+                        return null;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+        }
+
+        private synchronized void executeShellCommand(String command, IShellOutputReceiver receiver) throws NoSuchAlgorithmException {
+            commands.add(command);
+            StringBuilder output = new StringBuilder();
+            if (command.contains("dumpsys input")) {
+                output.append(surfaceOrientation);
+            } else if (command.contains("uiautomator dump")) {
+                if (dumpFails) {
+                    output.append("ERROR: could not get idle state.\n");
+                } else {
+                    output.append("UI hierchary dumped to: /data/local/tmp/dump.xml\n");
+                    if (command.contains("md5sum")) {
+                        byte[] md5 = MessageDigest.getInstance("MD5").digest(hierarchy.getBytes(UTF_8));
+                        output.append(String.format("%032x", new BigInteger(1, md5))).append("  /data/local/tmp/dump.xml\n");
+                    }
+                }
+            }
+            byte[] bytes = output.toString().getBytes(UTF_8);
+            receiver.addOutput(bytes, 0, bytes.length);
+            receiver.flush();
+        }
+
+        private synchronized RawImage getScreenshot() {
+            screenshotCount++;
+            return screenshot;
+        }
+
+        private synchronized void pullFile(String localPath) throws IOException {
+            pullCount++;
+            Files.write(new File(localPath).toPath(), hierarchy.getBytes(UTF_8));
+        }
+    }
+
+    private static RawImage rawImage(int width, int height, byte[] data) {
+        RawImage image = new RawImage();
+        image.version = 1;
+        image.bpp = 32;
+        image.width = width;
+        image.height = height;
+        image.size = data.length;
+        image.red_offset = 0;
+        image.red_length = 8;
+        image.green_offset = 8;
+        image.green_length = 8;
+        image.blue_offset = 16;
+        image.blue_length = 8;
+        image.alpha_offset = 24;
+        image.alpha_length = 8;
+        image.data = data;
+        return image;
+    }
+}
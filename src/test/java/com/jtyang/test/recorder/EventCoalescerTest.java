@@ -0,0 +1,99 @@
+package com.jtyang.test.recorder;
+
+import com.google.gct.testrecorder.event.TestRecorderEvent;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author jtyang
+ */
+class EventCoalescerTest {
+    private final List<MyTestRecorderEvent> captured = new CopyOnWriteArrayList<>();
+    private EventCoalescer coalescer;
+
+    @AfterEach
+    void tearDown() {
+        if (coalescer != null) {
+            coalescer.dispose();
+        }
+    }
+
+    @Test
+    void eventIsCapturedWhenTheNextOneArrives() {
+        coalescer = new EventCoalescer(Map.of(), captured::add);
+        MyTestRecorderEvent click = event(TestRecorderEvent.VIEW_CLICK, 1);
+        MyTestRecorderEvent secondClick = event(TestRecorderEvent.VIEW_CLICK, 2);
+        coalescer.offer(click);
+        assertTrue(captured.isEmpty());
+        coalescer.offer(secondClick);
+        assertEquals(List.of(click), captured);
+        coalescer.flush();
+        assertEquals(List.of(click, secondClick), captured);
+        assertEquals(0, coalescer.getCoalescedCount());
+    }
+
+    @Test
+    void burstIsCapturedOnceForItsFirstEvent() {
+        // Long enough for the burst to never settle by itself
+        coalescer = new EventCoalescer(Map.of(TestRecorderEvent.TEXT_CHANGE, 60_000), captured::add);
+        MyTestRecorderEvent first = event(TestRecorderEvent.TEXT_CHANGE, 1);
+        MyTestRecorderEvent second = event(TestRecorderEvent.TEXT_CHANGE, 2);
+        MyTestRecorderEvent third = event(TestRecorderEvent.TEXT_CHANGE, 3);
+        coalescer.offer(first);
+        coalescer.offer(second);
+        coalescer.offer(third);
+        assertTrue(captured.isEmpty());
+        // The rest of the burst is done, without a capture of its own
+        assertTrue(second.getCapture().isDone());
+        assertTrue(third.getCapture().isDone());
+        assertFalse(first.getCapture().isDone());
+
+        MyTestRecorderEvent click = event(TestRecorderEvent.VIEW_CLICK, 4);
+        coalescer.offer(click);
+        assertEquals(List.of(first), captured);
+        assertEquals(2, coalescer.getCoalescedCount());
+    }
+
+    @Test
+    void burstIsCapturedOnceItSettles() throws Exception {
+        coalescer = new EventCoalescer(Map.of(TestRecorderEvent.TEXT_CHANGE, 20), event -> {
+            captured.add(event);
+            event.completeCapture();
+        });
+        MyTestRecorderEvent first = event(TestRecorderEvent.TEXT_CHANGE, 1);
+        coalescer.offer(first);
+        coalescer.offer(event(TestRecorderEvent.TEXT_CHANGE, 2));
+        assertSame(first, first.getCapture().get(10, TimeUnit.SECONDS));
+        assertEquals(List.of(first), captured);
+        assertEquals(1, coalescer.getCoalescedCount());
+    }
+
+    @Test
+    void disposingCompletesEventsWithoutCapturing() {
+        coalescer = new EventCoalescer(Map.of(TestRecorderEvent.TEXT_CHANGE, 60_000), captured::add);
+        MyTestRecorderEvent pending = event(TestRecorderEvent.TEXT_CHANGE, 1);
+        coalescer.offer(pending);
+        coalescer.dispose();
+        assertTrue(pending.getCapture().isDone());
+
+        MyTestRecorderEvent late = event(TestRecorderEvent.VIEW_CLICK, 2);
+        coalescer.offer(late);
+        coalescer.flush();
+        assertTrue(late.getCapture().isDone());
+        assertTrue(captured.isEmpty());
+    }
+
+    private static MyTestRecorderEvent event(String eventType, long timestamp) {
+        return new MyTestRecorderEvent(eventType, timestamp);
+    }
+}
@@ -0,0 +1,125 @@
+package com.jtyang.test.recorder;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Round trips of {@link HierarchyDeltaWriter} and {@link HierarchyDeltaReader}.
+ *
+ * @author jtyang
+ */
+class HierarchyDeltaTest {
+    private static final String[] DUMPS = {
+            // Keyframe
+            "<?xml version='1.0' encoding='UTF-8' standalone='yes' ?><hierarchy rotation=\"0\">"
+                    + "<node index=\"0\" class=\"android.widget.FrameLayout\" bounds=\"[0,0][1080,1920]\">"
+                    + "<node index=\"0\" class=\"android.widget.Button\" text=\"OK\" checked=\"false\"/>"
+                    + "<node index=\"1\" class=\"android.widget.EditText\" text=\"\"/>"
+                    + "</node></hierarchy>",
+            // Changed and removed attributes
+            "<?xml version='1.0' encoding='UTF-8' standalone='yes' ?><hierarchy rotation=\"0\">"
+                    + "<node index=\"0\" class=\"android.widget.FrameLayout\" bounds=\"[0,0][1080,1920]\">"
+                    + "<node index=\"0\" class=\"android.widget.Button\" text=\"OK\"/>"
+                    + "<node index=\"1\" class=\"android.widget.EditText\" text=\"h&amp;llo &lt;&gt;\"/>"
+                    + "</node></hierarchy>",
+            // Added subtree, rotated
+            "<?xml version='1.0' encoding='UTF-8' standalone='yes' ?><hierarchy rotation=\"1\">"
+                    + "<node index=\"0\" class=\"android.widget.FrameLayout\" bounds=\"[0,0][1920,1080]\">"
+                    + "<node index=\"0\" class=\"android.widget.Button\" text=\"OK\"/>"
+                    + "<node index=\"1\" class=\"android.widget.EditText\" text=\"héllo\"/>"
+                    + "<node index=\"2\" class=\"android.widget.LinearLayout\"><node index=\"0\" class=\"android.widget.TextView\" text=\"✓\"/></node>"
+                    + "</node></hierarchy>",
+            // Removed subtree
+            "<?xml version='1.0' encoding='UTF-8' standalone='yes' ?><hierarchy rotation=\"1\">"
+                    + "<node index=\"0\" class=\"android.widget.FrameLayout\" bounds=\"[0,0][1920,1080]\">"
+                    + "<node index=\"0\" class=\"android.widget.Button\" text=\"OK\"/>"
+                    + "</node></hierarchy>",
+            // Unchanged
+            "<?xml version='1.0' encoding='UTF-8' standalone='yes' ?><hierarchy rotation=\"1\">"
+                    + "<node index=\"0\" class=\"android.widget.FrameLayout\" bounds=\"[0,0][1920,1080]\">"
+                    + "<node index=\"0\" class=\"android.widget.Button\" text=\"OK\"/>"
+                    + "</node></hierarchy>",
+    };
+
+    @TempDir
+    Path workDirectory;
+
+    @Test
+    void everyEntryReadsBackAsItsDump() throws IOException {
+        for (int keyframeInterval : new int[]{1, 2, 100}) {
+            List<File> dumps = writeDumps();
+            File deltas = workDirectory.resolve("hierarchies_" + keyframeInterval + ".jsonl").toFile();
+            try (HierarchyDeltaWriter writer = new HierarchyDeltaWriter(deltas, keyframeInterval)) {
+                for (File dump : dumps) {
+                    writer.append(dump);
+                }
+                assertEquals(dumps.size(), writer.getEntryCount());
+            }
+
+            try (HierarchyDeltaReader reader = new HierarchyDeltaReader(deltas)) {
+                assertEquals(dumps.size(), reader.size());
+                // In order, backwards and by name, so that entries are rebuilt both from the cache and from keyframes
+                for (int i = 0; i < dumps.size(); i++) {
+                    assertEquals(expectedXml(dumps.get(i)), readXml(reader, i), "entry " + i + " of interval " + keyframeInterval);
+                }
+                for (int i = dumps.size() - 1; i >= 0; i--) {
+                    assertEquals(expectedXml(dumps.get(i)), readXml(reader, i), "entry " + i + " of interval " + keyframeInterval);
+                }
+                File extracted = workDirectory.resolve("extracted_" + keyframeInterval + ".xml").toFile();
+                reader.extract(dumps.get(2).getName(), extracted);
+                assertEquals(expectedXml(dumps.get(2)), Files.readString(extracted.toPath()));
+            }
+        }
+    }
+
+    @Test
+    void unknownEntriesAreRejected() throws IOException {
+        File deltas = workDirectory.resolve(HierarchyDeltaWriter.FILENAME).toFile();
+        try (HierarchyDeltaWriter writer = new HierarchyDeltaWriter(deltas, 2)) {
+            writer.append(writeDumps().get(0));
+        }
+        try (HierarchyDeltaReader reader = new HierarchyDeltaReader(deltas)) {
+            assertEquals(0, reader.indexOf("ui_hierarchy_0.xml"));
+            assertEquals(-1, reader.indexOf("ui_hierarchy_9.xml"));
+            assertThrows(IOException.class, () -> reader.extract("ui_hierarchy_9.xml", workDirectory.resolve("missing.xml").toFile()));
+            assertThrows(IndexOutOfBoundsException.class, () -> readXml(reader, 1));
+        }
+    }
+
+    private List<File> writeDumps() throws IOException {
+        List<File> dumps = new ArrayList<>();
+        for (int i = 0; i < DUMPS.length; i++) {
+            File dump = workDirectory.resolve("ui_hierarchy_" + i + ".xml").toFile();
+            Files.writeString(dump.toPath(), DUMPS[i]);
+            dumps.add(dump);
+        }
+        return dumps;
+    }
+
+    /**
+     * Rebuilt dumps are equivalent to the originals, not byte-identical, so compare with the original as rewritten.
+     */
+    private static String expectedXml(File dump) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HierarchyTree.parse(dump).writeXml(out);
+        return out.toString(UTF_8);
+    }
+
+    private static String readXml(HierarchyDeltaReader reader, int index) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        reader.writeXml(index, out);
+        return out.toString(UTF_8);
+    }
+}
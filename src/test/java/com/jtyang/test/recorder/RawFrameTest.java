@@ -0,0 +1,72 @@
+package com.jtyang.test.recorder;
+
+import com.android.ddmlib.RawImage;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * @author jtyang
+ */
+class RawFrameTest {
+    @Test
+    void decodesChannelsAtTheirOffsets() {
+        // RGBA_8888 frame buffers, red in the lowest byte
+        RawImage rgba = rawImage(2, 1, 0, 8, 16, 24, 8);
+        rgba.data = new byte[]{0x11, 0x22, 0x33, 0x44, (byte) 0xff, 0x00, (byte) 0x80, 0x7f};
+        assertArrayEquals(new int[]{0x44112233, 0x7fff0080}, RawFrame.fromRawImage(rgba).getPixels());
+
+        // BGRA_8888 frame buffers, blue in the lowest byte
+        RawImage bgra = rawImage(2, 1, 16, 8, 0, 24, 8);
+        bgra.data = new byte[]{0x11, 0x22, 0x33, 0x44, (byte) 0xff, 0x00, (byte) 0x80, 0x7f};
+        assertArrayEquals(new int[]{0x44332211, 0x7f8000ff}, RawFrame.fromRawImage(bgra).getPixels());
+    }
+
+    @Test
+    void framesWithoutAlphaAreOpaque() {
+        RawImage rgbx = rawImage(1, 1, 0, 8, 16, 24, 0);
+        rgbx.data = new byte[]{0x11, 0x22, 0x33, 0x00};
+        assertArrayEquals(new int[]{0xff112233}, RawFrame.fromRawImage(rgbx).getPixels());
+    }
+
+    @Test
+    void rotatesLikeRawImage() {
+        RawImage image = rawImage(3, 2, 0, 8, 16, 24, 8);
+        image.data = new byte[3 * 2 * 4];
+        for (int i = 0; i < image.data.length; i++) {
+            image.data[i] = (byte) (i * 7 + 1);
+        }
+        RawFrame frame = RawFrame.fromRawImage(image);
+        RawImage rotatedImage = image;
+        for (int quarterTurns = 0; quarterTurns < 4; quarterTurns++) {
+            RawFrame expected = RawFrame.fromRawImage(rotatedImage);
+            RawFrame rotated = frame.rotate(quarterTurns);
+            assertEquals(expected.getWidth(), rotated.getWidth(), "width after " + quarterTurns + " quarter turns");
+            assertEquals(expected.getHeight(), rotated.getHeight(), "height after " + quarterTurns + " quarter turns");
+            assertArrayEquals(expected.getPixels(), rotated.getPixels());
+            rotatedImage = rotatedImage.getRotated();
+        }
+        assertSame(frame, frame.rotate(4));
+        assertArrayEquals(frame.rotate(3).getPixels(), frame.rotate(-1).getPixels());
+    }
+
+    private static RawImage rawImage(int width, int height, int redOffset, int greenOffset, int blueOffset, int alphaOffset, int alphaLength) {
+        RawImage image = new RawImage();
+        image.version = 1;
+        image.bpp = 32;
+        image.width = width;
+        image.height = height;
+        image.size = width * height * 4;
+        image.red_offset = redOffset;
+        image.red_length = 8;
+        image.green_offset = greenOffset;
+        image.green_length = 8;
+        image.blue_offset = blueOffset;
+        image.blue_length = 8;
+        image.alpha_offset = alphaOffset;
+        image.alpha_length = alphaLength;
+        return image;
+    }
+}
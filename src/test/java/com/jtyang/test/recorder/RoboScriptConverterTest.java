@@ -0,0 +1,114 @@
+package com.jtyang.test.recorder;
+
+import com.google.gct.testrecorder.event.ElementDescriptor;
+import com.google.gct.testrecorder.event.TestRecorderEvent;
+import com.google.gson.Gson;
+import com.jtyang.test.recorder.MyRecordingDialog.MyElementDescriptorSerializer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author jtyang
+ */
+class RoboScriptConverterTest {
+    @TempDir
+    Path workDirectory;
+
+    @Test
+    void jsonConvertedToBinaryAndBackIsTheSame() throws IOException {
+        for (boolean compact : new boolean[]{false, true}) {
+            File jsonScript = workDirectory.resolve("robo_script_" + compact + ".json").toFile();
+            File binaryScript = workDirectory.resolve("robo_script_" + compact + ".bin").toFile();
+            File convertedScript = workDirectory.resolve("converted_" + compact + ".json").toFile();
+            Gson gson = RoboScriptWriter.createGson(new MyElementDescriptorSerializer(className -> className.replace('.', '/')));
+            RoboScriptWriter.write(gson, events(), Files.newBufferedWriter(jsonScript.toPath(), UTF_8), compact);
+
+            assertEquals(4, RoboScriptConverter.toBinary(jsonScript, binaryScript));
+            assertEquals(4, RoboScriptConverter.toJson(binaryScript, convertedScript, compact));
+            assertEquals(Files.readString(jsonScript.toPath()), Files.readString(convertedScript.toPath()));
+        }
+    }
+
+    @Test
+    void binaryScriptKeepsEveryField() throws IOException {
+        File jsonScript = workDirectory.resolve("robo_script.json").toFile();
+        File binaryScript = workDirectory.resolve("robo_script.bin").toFile();
+        Gson gson = RoboScriptWriter.createGson(new MyElementDescriptorSerializer(className -> className.replace('.', '/')));
+        RoboScriptWriter.write(gson, events(), Files.newBufferedWriter(jsonScript.toPath(), UTF_8), false);
+        RoboScriptConverter.toBinary(jsonScript, binaryScript);
+
+        try (BinaryRoboScriptReader reader = new BinaryRoboScriptReader(binaryScript)) {
+            assertEquals(4, reader.size());
+            MyTestRecorderEvent click = reader.get(1);
+            assertEquals(TestRecorderEvent.VIEW_CLICK, click.getEventType());
+            assertEquals(1_000_001L, click.getTimestamp());
+            assertEquals("ui_hierarchy_1.xml", click.getHierarchy());
+            assertEquals("ui_screenshot_1.png", click.getScreenshot());
+            assertEquals(Long.valueOf(12), click.getCaptureSkewMillis());
+            assertEquals(Long.valueOf(340), click.getCaptureStalenessMillis());
+            assertEquals(2, click.getElementDescriptorsCount());
+            ElementDescriptor descriptor = click.getElementDescriptor(0);
+            assertEquals("android/widget/Button", descriptor.getClassName());
+            assertEquals(3, descriptor.getRecyclerViewChildPosition());
+            assertEquals(-1, descriptor.getAdapterViewChildPosition());
+            assertEquals(1, descriptor.getGroupViewChildPosition());
+            assertEquals("com.example:id/ok", descriptor.getResourceId());
+            assertEquals("Confirm", descriptor.getContentDescription());
+            assertEquals("OK ✓", descriptor.getText());
+
+            MyTestRecorderEvent textChange = reader.get(2);
+            assertEquals("héllo", textChange.getReplacementText());
+            assertEquals(7, textChange.getActionCode());
+            assertEquals(250L, textChange.getDelayTime());
+            assertNull(textChange.getScreenshot());
+            assertNull(textChange.getCaptureSkewMillis());
+
+            MyTestRecorderEvent permissions = reader.get(3);
+            assertArrayEquals(new String[]{"android.permission.CAMERA", "android.permission.RECORD_AUDIO"}, permissions.getRequestedPermissions());
+            assertEquals("left", permissions.getSwipeDirection());
+            assertTrue(permissions.canScrollTo());
+            assertNull(reader.get(0).getRequestedPermissions());
+        }
+    }
+
+    private static List<MyTestRecorderEvent> events() {
+        List<MyTestRecorderEvent> events = new ArrayList<>();
+        events.add(new MyTestRecorderEvent("RECORD_START", 1_000_000L));
+
+        MyTestRecorderEvent click = new MyTestRecorderEvent(TestRecorderEvent.VIEW_CLICK, 1_000_001L);
+        click.setHierarchy("ui_hierarchy_1.xml");
+        click.setScreenshot("ui_screenshot_1.png");
+        click.setCaptureSkewMillis(12L);
+        click.setCaptureStalenessMillis(340L);
+        click.addElementDescriptor(new ElementDescriptor("android.widget.Button", 3, -1, 1, "com.example:id/ok", "Confirm", "OK ✓"));
+        click.addElementDescriptor(new ElementDescriptor("android.widget.LinearLayout", -1, -1, -1, null, null, null));
+        events.add(click);
+
+        MyTestRecorderEvent textChange = new MyTestRecorderEvent(TestRecorderEvent.TEXT_CHANGE, 1_000_002L);
+        textChange.setHierarchy("ui_hierarchy_1.xml");
+        textChange.setReplacementText("héllo");
+        textChange.setActionCode(7);
+        textChange.setDelayTime(250L);
+        events.add(textChange);
+
+        MyTestRecorderEvent permissions = new MyTestRecorderEvent(TestRecorderEvent.PERMISSIONS_REQUEST, 1_000_003L);
+        permissions.setRequestedPermissions(new String[]{"android.permission.CAMERA", "android.permission.RECORD_AUDIO"});
+        permissions.setSwipeDirection("left");
+        permissions.setCanScrollTo(true);
+        events.add(permissions);
+        return events;
+    }
+}